@@ -0,0 +1,135 @@
+package org.mozilla.mozsearch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Source trees for benchmarks.
+ *
+ * "data" is the test corpus (src/test/resources/data, or the directory in
+ * the mozsearch.benchmark.data property), copied `scale` times into
+ * separate directories. "synthetic" is `scale` generated classes in a
+ * package hierarchy which refer to each other, so resolution has to go
+ * through the source roots.
+ */
+public class MozSearchBenchmarkCorpus {
+  public static final String DATA = "data";
+  public static final String SYNTHETIC = "synthetic";
+
+  private static Path getDataDir() {
+    return Paths.get(System.getProperty("mozsearch.benchmark.data", "src/test/resources/data"));
+  }
+
+  /*
+   * Create a source tree in a temporary directory.
+   *
+   * @Param corpus DATA or SYNTHETIC.
+   * @Param scale Number of copies of the test corpus, or number of
+   *              generated classes.
+   */
+  public static Path create(final String corpus, final int scale) throws IOException {
+    final Path dir = Files.createTempDirectory("mozsearch-benchmark");
+    if (corpus.equals(DATA)) {
+      final List<Path> files = listFiles(getDataDir());
+      for (int i = 0; i < scale; i++) {
+        final Path copyDir = Files.createDirectories(dir.resolve("copy" + i));
+        for (Path file : files) {
+          Files.copy(file, copyDir.resolve(file.getFileName()));
+        }
+      }
+    } else if (corpus.equals(SYNTHETIC)) {
+      for (int i = 0; i < scale; i++) {
+        final Path packageDir = Files.createDirectories(dir.resolve("synthetic/p" + (i % 16)));
+        Files.write(
+            packageDir.resolve("Class" + i + ".java"),
+            generateClass(i).getBytes(StandardCharsets.UTF_8));
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown corpus: " + corpus);
+    }
+    return dir;
+  }
+
+  private static String generateClass(final int index) {
+    final String name = "Class" + index;
+    // Refer to the previous class, which may be in another package.
+    final String other =
+        index > 0 ? "synthetic.p" + ((index - 1) % 16) + ".Class" + (index - 1) : name;
+    final StringBuilder builder = new StringBuilder();
+    builder
+        .append("package synthetic.p" + (index % 16) + ";\n\n")
+        .append("import java.util.ArrayList;\n")
+        .append("import java.util.List;\n\n")
+        .append("public class " + name + " {\n")
+        .append("  enum State {\n    IDLE,\n    RUNNING\n  }\n\n")
+        .append("  public int count = 0;\n")
+        .append("  private State state = State.IDLE;\n")
+        .append("  private final List<String> names = new ArrayList<String>();\n\n")
+        .append("  public " + name + "(int count) {\n    this.count = count;\n  }\n\n");
+    for (int i = 0; i < 8; i++) {
+      builder
+          .append("  public int method" + i + "(" + other + " other, String text) {\n")
+          .append("    final int length = text.length() + count;\n")
+          .append("    names.add(text.trim());\n")
+          .append("    if (state == State.IDLE) {\n")
+          .append("      state = State.RUNNING;\n")
+          .append("    }\n")
+          .append("    final StringBuilder builder = new StringBuilder();\n")
+          .append("    builder.append(length).append(names.size());\n")
+          .append("    return other.count + builder.length();\n")
+          .append("  }\n\n");
+    }
+    builder
+        .append("  class Inner {\n")
+        .append("    public int x = count;\n\n")
+        .append("    public " + name + " outer() {\n")
+        .append("      return new " + name + "(x);\n")
+        .append("    }\n")
+        .append("  }\n")
+        .append("}\n");
+    return builder.toString();
+  }
+
+  /*
+   * @Return Java files in the directory and its subdirectories, sorted by
+   *         path.
+   */
+  public static List<Path> listFiles(final Path dir) throws IOException {
+    try (Stream<Path> stream = Files.walk(dir)) {
+      final List<Path> files =
+          stream.filter(file -> file.toString().endsWith(".java")).collect(Collectors.toList());
+      Collections.sort(files);
+      return files;
+    }
+  }
+
+  public static void delete(final Path dir) throws IOException {
+    Files.walkFileTree(
+        dir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Files.delete(file);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException exception)
+              throws IOException {
+            Files.delete(dir);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+}
@@ -0,0 +1,57 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Parse stage: parsing all files of the corpus without symbol resolution.
+ * Sources are read into memory in setup, so file I/O isn't measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MozSearchParseBenchmark {
+  @Param({MozSearchBenchmarkCorpus.DATA, MozSearchBenchmarkCorpus.SYNTHETIC})
+  public String corpus;
+
+  @Param({"10"})
+  public int scale;
+
+  private final List<String> mSources = new ArrayList<String>();
+
+  @Setup
+  public void setUp() throws IOException {
+    final Path dir = MozSearchBenchmarkCorpus.create(corpus, scale);
+    try {
+      for (Path file : MozSearchBenchmarkCorpus.listFiles(dir)) {
+        mSources.add(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+      }
+    } finally {
+      MozSearchBenchmarkCorpus.delete(dir);
+    }
+  }
+
+  @Benchmark
+  public void parse(final Blackhole blackhole) {
+    for (String source : mSources) {
+      final CompilationUnit unit = StaticJavaParser.parse(source);
+      blackhole.consume(unit);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package org.mozilla.mozsearch;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Type solver setup: discovering source roots of the tree and building the
+ * solver set of a worker, as done before any file is indexed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MozSearchSolverSetupBenchmark {
+  @Param({MozSearchBenchmarkCorpus.DATA, MozSearchBenchmarkCorpus.SYNTHETIC})
+  public String corpus;
+
+  @Param({"10", "100"})
+  public int scale;
+
+  private Path mSourceDir;
+
+  @Setup
+  public void setUp() throws IOException {
+    mSourceDir = MozSearchBenchmarkCorpus.create(corpus, scale);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    MozSearchBenchmarkCorpus.delete(mSourceDir);
+  }
+
+  @Benchmark
+  public void discover(final Blackhole blackhole) throws IOException {
+    try (MozSearchTypeSolverRegistry registry = new MozSearchTypeSolverRegistry(mSourceDir)) {
+      registry.discover();
+      blackhole.consume(registry.getRoots());
+    }
+  }
+
+  @Benchmark
+  public void createSolvers(final Blackhole blackhole) throws IOException {
+    try (MozSearchTypeSolverRegistry registry = new MozSearchTypeSolverRegistry(mSourceDir)) {
+      registry.discover();
+      blackhole.consume(registry.getParser());
+    }
+  }
+}
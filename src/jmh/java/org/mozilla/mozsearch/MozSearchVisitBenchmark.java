@@ -0,0 +1,156 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
+import com.github.javaparser.ast.body.EnumDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.CastExpr;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.ast.stmt.CatchClause;
+import com.github.javaparser.symbolsolver.javaparsermodel.JavaParserFacade;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+ * Visit stage: the cost of MozSearchJSONOutputVisitor, mostly symbol
+ * resolution, per visit overload.
+ *
+ * Files are parsed with the solvers of the registry in setup. Each
+ * invocation visits every outermost node of the `node` type in the corpus
+ * (including the nodes below it), or whole files for "CompilationUnit".
+ * Resolved types cached by JavaParserFacade are dropped every iteration, but
+ * source files parsed by the solvers are kept, same as a long run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MozSearchVisitBenchmark {
+  private static final Map<String, Class<? extends Node>> NODE_TYPES =
+      new HashMap<String, Class<? extends Node>>();
+
+  static {
+    NODE_TYPES.put("CompilationUnit", CompilationUnit.class);
+    NODE_TYPES.put("ClassOrInterfaceDeclaration", ClassOrInterfaceDeclaration.class);
+    NODE_TYPES.put("VariableDeclarator", VariableDeclarator.class);
+    NODE_TYPES.put("EnumDeclaration", EnumDeclaration.class);
+    NODE_TYPES.put("ConstructorDeclaration", ConstructorDeclaration.class);
+    NODE_TYPES.put("MethodDeclaration", MethodDeclaration.class);
+    NODE_TYPES.put("CatchClause", CatchClause.class);
+    NODE_TYPES.put("MethodCallExpr", MethodCallExpr.class);
+    NODE_TYPES.put("NameExpr", NameExpr.class);
+    NODE_TYPES.put("ObjectCreationExpr", ObjectCreationExpr.class);
+    NODE_TYPES.put("FieldAccessExpr", FieldAccessExpr.class);
+    NODE_TYPES.put("CastExpr", CastExpr.class);
+  }
+
+  @Param({MozSearchBenchmarkCorpus.DATA, MozSearchBenchmarkCorpus.SYNTHETIC})
+  public String corpus;
+
+  @Param({"10"})
+  public int scale;
+
+  @Param({
+    "CompilationUnit",
+    "ClassOrInterfaceDeclaration",
+    "VariableDeclarator",
+    "EnumDeclaration",
+    "ConstructorDeclaration",
+    "MethodDeclaration",
+    "CatchClause",
+    "MethodCallExpr",
+    "NameExpr",
+    "ObjectCreationExpr",
+    "FieldAccessExpr",
+    "CastExpr"
+  })
+  public String node;
+
+  private Path mSourceDir;
+  private Path mOutputPath;
+  private MozSearchTypeSolverRegistry mRegistry;
+  private final List<Node> mNodes = new ArrayList<Node>();
+  private final MozSearchSymbolInterner mInterner =
+      new MozSearchSymbolInterner(MozSearchSymbolInterner.DEFAULT_MAX_SYMBOLS);
+
+  private static boolean hasAncestor(final Node node, final Class<? extends Node> type) {
+    Optional<Node> parent = node.getParentNode();
+    while (parent.isPresent()) {
+      if (type.isInstance(parent.get())) {
+        return true;
+      }
+      parent = parent.get().getParentNode();
+    }
+    return false;
+  }
+
+  private static void findOutermost(
+      final CompilationUnit unit, final Class<? extends Node> type, final List<Node> nodes) {
+    for (Node found : unit.findAll(type)) {
+      if (!hasAncestor(found, type)) {
+        nodes.add(found);
+      }
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    final Class<? extends Node> type = NODE_TYPES.get(node);
+    if (type == null) {
+      throw new IllegalArgumentException("Unknown node type: " + node);
+    }
+    mSourceDir = MozSearchBenchmarkCorpus.create(corpus, scale);
+    mOutputPath = Files.createTempDirectory("mozsearch-benchmark-output").resolve("output");
+    mRegistry = new MozSearchTypeSolverRegistry(mSourceDir);
+    mRegistry.discover();
+    for (Path file : MozSearchBenchmarkCorpus.listFiles(mSourceDir)) {
+      findOutermost(mRegistry.parse(file), type, mNodes);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void clearCaches() {
+    JavaParserFacade.clearInstances();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    mRegistry.close();
+    MozSearchBenchmarkCorpus.delete(mSourceDir);
+    Files.delete(mOutputPath.getParent());
+  }
+
+  @Benchmark
+  public int visit() throws IOException {
+    // Not committed, so the output is removed on close.
+    try (MozSearchAnalysisWriter writer = new MozSearchAnalysisWriter(mOutputPath)) {
+      final MozSearchJSONOutputVisitor visitor = new MozSearchJSONOutputVisitor(writer, mInterner);
+      for (Node n : mNodes) {
+        n.accept(visitor, null);
+      }
+      return writer.getRecordCount();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.NameExpr;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+ * Output stage: record serialization and writing analysis files.
+ *
+ * Files are parsed without symbol resolution, so resolution fails early and
+ * the visitor only walks the tree and emits unresolved records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MozSearchWriteBenchmark {
+  private static final String SCOPE = "org.mozilla.mozsearch.MozSearchWriteBenchmark.";
+
+  @Param({MozSearchBenchmarkCorpus.DATA, MozSearchBenchmarkCorpus.SYNTHETIC})
+  public String corpus;
+
+  @Param({"10"})
+  public int scale;
+
+  @Param({"false", "true"})
+  public boolean compress;
+
+  @Param({"false", "true"})
+  public boolean binary;
+
+  private Path mOutputPath;
+  private final List<CompilationUnit> mUnits = new ArrayList<CompilationUnit>();
+  private final List<MethodCallExpr> mCalls = new ArrayList<MethodCallExpr>();
+  private final List<NameExpr> mNames = new ArrayList<NameExpr>();
+  private final MozSearchSymbolInterner mInterner =
+      new MozSearchSymbolInterner(MozSearchSymbolInterner.DEFAULT_MAX_SYMBOLS);
+  private final MozSearchAnalysisRecord mRecord = new MozSearchAnalysisRecord(mInterner);
+  private final StringBuilder mBuilder = new StringBuilder();
+
+  @Setup
+  public void setUp() throws IOException {
+    final Path dir = MozSearchBenchmarkCorpus.create(corpus, scale);
+    try {
+      for (Path file : MozSearchBenchmarkCorpus.listFiles(dir)) {
+        final CompilationUnit unit = StaticJavaParser.parse(file);
+        mUnits.add(unit);
+        mCalls.addAll(unit.findAll(MethodCallExpr.class));
+        mNames.addAll(unit.findAll(NameExpr.class));
+      }
+    } finally {
+      MozSearchBenchmarkCorpus.delete(dir);
+    }
+    mOutputPath = Files.createTempDirectory("mozsearch-benchmark-output").resolve("output");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(mOutputPath);
+    Files.delete(mOutputPath.getParent());
+  }
+
+  // Encode a source and a target record per call and name into memory.
+  @Benchmark
+  public int encode() {
+    int length = 0;
+    for (MethodCallExpr call : mCalls) {
+      mBuilder.setLength(0);
+      mRecord.reset().addSourceLine(call.getName()).addSymbol(SCOPE, call.getName());
+      mRecord.addSource(call).writeTo(mBuilder);
+      mRecord.reset().addTargetLine(call.getName()).addSymbol(SCOPE, call.getName());
+      mRecord.addUseTarget(SCOPE + "encode").writeTo(mBuilder);
+      length += mBuilder.length();
+    }
+    for (NameExpr name : mNames) {
+      mBuilder.setLength(0);
+      mRecord.reset().addSourceLine(name.getName()).addSymbol("", name.getName());
+      mRecord.addSource(name, "").writeTo(mBuilder);
+      mRecord.reset().addTargetLine(name.getName()).addSymbol("", name.getName());
+      mRecord.addUseTarget("").writeTo(mBuilder);
+      length += mBuilder.length();
+    }
+    return length;
+  }
+
+  // Visit and write one analysis file per source file, as the indexer does.
+  @Benchmark
+  public int writeFiles() throws IOException {
+    int count = 0;
+    for (CompilationUnit unit : mUnits) {
+      try (MozSearchAnalysisWriter writer =
+          new MozSearchAnalysisWriter(mOutputPath, compress, binary)) {
+        unit.accept(new MozSearchJSONOutputVisitor(writer, mInterner), null);
+        writer.commit();
+        count += writer.getRecordCount();
+      }
+    }
+    return count;
+  }
+}
@@ -1,19 +1,204 @@
 package org.mozilla.mozsearch;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class JavaAnalyze {
   public static void main(String[] args) {
     int n = 0;
     int timeout = -1;
+    int jobs = -1;
+    int readJobs = -1;
+    int writeJobs = -1;
+    ArrayList<Path> classpath = new ArrayList<Path>();
+    ArrayList<String> androidApis = new ArrayList<String>();
+    boolean incremental = false;
+    Path cacheDir = null;
+    Path reportPath = null;
+    ArrayList<String> ignoreGlobs = new ArrayList<String>();
+    boolean ignoreGenerated = false;
+    String shard = null;
+    boolean shardByPackage = false;
+    boolean merge = false;
+    Path serverFile = null;
+    Path connectFile = null;
+    boolean stop = false;
+    boolean compress = false;
+    boolean binary = false;
+    Path symbolIndexPath = null;
+    Path lookupPath = null;
+    boolean decode = false;
+    long fileSteps = MozSearchResolutionBudget.DEFAULT_FILE_STEPS;
+    long callSteps = MozSearchResolutionBudget.DEFAULT_CALL_STEPS;
+    long sourceCacheBytes = MozSearchSourceCache.DEFAULT_MAX_BYTES;
 
     try {
-      while (true) {
+      while (n < args.length) {
         if (args[n].equals("--timeout")) {
           timeout = Integer.parseInt(args[n + 1]) * 1000;
           n += 2;
           continue;
         }
+        if (args[n].equals("--jobs")) {
+          jobs = Integer.parseInt(args[n + 1]);
+          if (jobs <= 0) {
+            throw new IllegalArgumentException("--jobs must be positive");
+          }
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--read-jobs")) {
+          readJobs = Integer.parseInt(args[n + 1]);
+          if (readJobs <= 0) {
+            throw new IllegalArgumentException("--read-jobs must be positive");
+          }
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--write-jobs")) {
+          writeJobs = Integer.parseInt(args[n + 1]);
+          if (writeJobs <= 0) {
+            throw new IllegalArgumentException("--write-jobs must be positive");
+          }
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--classpath")) {
+          for (String jar : args[n + 1].split(File.pathSeparator)) {
+            if (jar.length() > 0) {
+              classpath.add(Paths.get(jar));
+            }
+          }
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--incremental")) {
+          incremental = true;
+          n += 1;
+          continue;
+        }
+        if (args[n].equals("--cache-dir")) {
+          cacheDir = Paths.get(args[n + 1]);
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--budget")) {
+          fileSteps = Long.parseLong(args[n + 1]);
+          if (fileSteps < 0) {
+            throw new IllegalArgumentException("--budget must not be negative");
+          }
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--call-budget")) {
+          callSteps = Long.parseLong(args[n + 1]);
+          if (callSteps < 0) {
+            throw new IllegalArgumentException("--call-budget must not be negative");
+          }
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--source-cache")) {
+          final long megabytes = Long.parseLong(args[n + 1]);
+          if (megabytes < 0) {
+            throw new IllegalArgumentException("--source-cache must not be negative");
+          }
+          try {
+            sourceCacheBytes = Math.multiplyExact(megabytes, 1024L * 1024);
+          } catch (ArithmeticException exception) {
+            throw new IllegalArgumentException("--source-cache is too large");
+          }
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--ignore")) {
+          ignoreGlobs.add(args[n + 1]);
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--ignore-generated")) {
+          ignoreGenerated = true;
+          n += 1;
+          continue;
+        }
+        if (args[n].equals("--shard")) {
+          shard = args[n + 1];
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--shard-by-package")) {
+          shardByPackage = true;
+          n += 1;
+          continue;
+        }
+        if (args[n].equals("--merge")) {
+          merge = true;
+          n += 1;
+          continue;
+        }
+        if (args[n].equals("--serve")) {
+          serverFile = Paths.get(args[n + 1]);
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--connect")) {
+          connectFile = Paths.get(args[n + 1]);
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--decode")) {
+          decode = true;
+          n += 1;
+          continue;
+        }
+        if (args[n].equals("--stop")) {
+          stop = true;
+          n += 1;
+          continue;
+        }
+        if (args[n].equals("--compress")) {
+          if (args[n + 1].equals("gzip")) {
+            compress = true;
+          } else if (!args[n + 1].equals("none")) {
+            throw new IllegalArgumentException("Unknown compression: " + args[n + 1]);
+          }
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--format")) {
+          if (args[n + 1].equals("binary")) {
+            binary = true;
+          } else if (!args[n + 1].equals("json")) {
+            throw new IllegalArgumentException("Unknown format: " + args[n + 1]);
+          }
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--symbol-index")) {
+          symbolIndexPath = Paths.get(args[n + 1]);
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--lookup")) {
+          lookupPath = Paths.get(args[n + 1]);
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--report")) {
+          reportPath = Paths.get(args[n + 1]);
+          n += 2;
+          continue;
+        }
+        if (args[n].equals("--android-api")) {
+          androidApis.add(args[n + 1]);
+          n += 2;
+          continue;
+        }
         break;
       }
     } catch (Exception e) {
@@ -21,17 +206,154 @@ public class JavaAnalyze {
       System.exit(-1);
     }
 
+    if (decode) {
+      System.exit(decode(Arrays.asList(args).subList(n, args.length)));
+    }
+
+    if (lookupPath != null) {
+      System.exit(lookup(lookupPath, Arrays.asList(args).subList(n, args.length)));
+    }
+
+    if (connectFile != null) {
+      System.exit(connect(connectFile, stop, Arrays.asList(args).subList(n, args.length)));
+    }
+
     if (args.length < n + 2) {
       System.err.println("Usage: JavaAnalyze <source path> <destination path>");
       System.exit(-1);
     }
 
-    System.out.println("Generating references ...");
     MozSearchJavaIndexer indexer =
         new MozSearchJavaIndexer(Paths.get(args[n]), Paths.get(args[n + 1]));
+    indexer.setIgnoreGlobs(ignoreGlobs);
+    indexer.setIgnoreGenerated(ignoreGenerated);
+    if (merge) {
+      ArrayList<Path> shardDirs = new ArrayList<Path>();
+      for (int i = n + 2; i < args.length; i++) {
+        shardDirs.add(Paths.get(args[i]));
+      }
+      System.exit(indexer.mergeShards(shardDirs) ? 0 : 1);
+    }
+    if (serverFile != null) {
+      // The server indexes files as they are sent, and has no end of a run
+      // to write these at.
+      if (symbolIndexPath != null) {
+        System.err.println("--symbol-index can't be used with --serve");
+        System.exit(-1);
+      }
+      if (reportPath != null) {
+        System.err.println("--report can't be used with --serve");
+        System.exit(-1);
+      }
+      if (incremental) {
+        System.err.println("--incremental can't be used with --serve");
+        System.exit(-1);
+      }
+    }
+    if (symbolIndexPath != null) {
+      if (incremental) {
+        System.err.println("--incremental can't be used with --symbol-index");
+        System.exit(-1);
+      }
+      indexer.setSymbolIndexPath(symbolIndexPath);
+    }
+    if (shard != null) {
+      if (incremental) {
+        System.err.println("--incremental can't be used with --shard");
+        System.exit(-1);
+      }
+      try {
+        indexer.setShard(MozSearchShard.parse(shard, shardByPackage));
+      } catch (IllegalArgumentException exception) {
+        System.err.println(exception.getMessage());
+        System.exit(-1);
+      }
+    }
+
     if (timeout > 0) {
       indexer.setTimeout(timeout);
     }
-    indexer.outputIndexes();
+    if (jobs > 0) {
+      indexer.setThreadPoolCount(jobs);
+    }
+    if (readJobs > 0) {
+      indexer.setReadThreadCount(readJobs);
+    }
+    if (writeJobs > 0) {
+      indexer.setWriteThreadCount(writeJobs);
+    }
+    indexer.setClasspath(classpath);
+    indexer.setAndroidApis(androidApis);
+    indexer.setIncremental(incremental);
+    if (cacheDir != null) {
+      indexer.setCacheDir(cacheDir);
+    }
+    if (reportPath != null) {
+      indexer.setReportPath(reportPath);
+    }
+    indexer.setResolutionBudget(fileSteps, callSteps);
+    indexer.setSourceCacheSize(sourceCacheBytes);
+    indexer.setCompress(compress);
+    indexer.setBinary(binary);
+
+    if (serverFile != null) {
+      try (MozSearchIndexServer server = new MozSearchIndexServer(indexer, serverFile)) {
+        System.out.println("Listening on port " + server.getPort());
+        server.serve();
+      } catch (IOException exception) {
+        System.err.println(exception);
+        System.exit(-1);
+      }
+      return;
+    }
+
+    System.out.println("Generating references ...");
+    if (!indexer.outputIndexes()) {
+      System.exit(1);
+    }
+  }
+
+  private static int decode(final List<String> paths) {
+    try {
+      for (String path : paths) {
+        MozSearchAnalysisReader.decode(Paths.get(path), System.out);
+      }
+      System.out.flush();
+      return 0;
+    } catch (IOException exception) {
+      System.err.println(exception);
+      return -1;
+    }
+  }
+
+  private static int lookup(final Path indexPath, final List<String> symbols) {
+    try (MozSearchSymbolIndex index = new MozSearchSymbolIndex(indexPath)) {
+      for (String symbol : symbols) {
+        for (MozSearchSymbolIndex.Occurrence occurrence : index.lookup(symbol)) {
+          System.out.println(occurrence);
+        }
+      }
+      return 0;
+    } catch (IOException exception) {
+      System.err.println(exception);
+      return -1;
+    }
+  }
+
+  private static int connect(final Path serverFile, final boolean stop, final List<String> paths) {
+    try {
+      final MozSearchIndexClient client = new MozSearchIndexClient(serverFile);
+      if (stop) {
+        return client.stop(System.out) ? 0 : 1;
+      }
+      final ArrayList<Path> files = new ArrayList<Path>();
+      for (String path : paths) {
+        files.add(Paths.get(path));
+      }
+      return client.index(files, System.out) ? 0 : 1;
+    } catch (IOException exception) {
+      System.err.println(exception);
+      return -1;
+    }
   }
 }
@@ -0,0 +1,96 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Reader of analysis files in any of the forms that MozSearchAnalysisWriter
+ * writes. Compressed files are detected by their suffix, and binary files
+ * by their header. All forms are read as the same JSON lines.
+ */
+public class MozSearchAnalysisReader implements Closeable {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream mStream;
+  // One of these is null, depending on the form.
+  private final BufferedReader mReader;
+  private final MozSearchBinaryFormat.Decoder mDecoder;
+  private final MozSearchAnalysisRecord mRecord = new MozSearchAnalysisRecord();
+  private final StringBuilder mBuilder = new StringBuilder(256);
+
+  public MozSearchAnalysisReader(final Path path) throws IOException {
+    InputStream stream = Files.newInputStream(path);
+    try {
+      if (path.toString().endsWith(MozSearchAnalysisWriter.GZIP_SUFFIX)) {
+        stream = new GZIPInputStream(stream, BUFFER_SIZE);
+      }
+      stream = new BufferedInputStream(stream, BUFFER_SIZE);
+      final byte[] magic = new byte[MozSearchBinaryFormat.MAGIC.length];
+      stream.mark(magic.length);
+      int length = 0;
+      while (length < magic.length) {
+        final int count = stream.read(magic, length, magic.length - length);
+        if (count < 0) {
+          break;
+        }
+        length += count;
+      }
+      if (Arrays.equals(magic, MozSearchBinaryFormat.MAGIC)) {
+        mReader = null;
+        mDecoder = new MozSearchBinaryFormat.Decoder(stream);
+      } else {
+        stream.reset();
+        mReader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        mDecoder = null;
+      }
+    } catch (IOException exception) {
+      stream.close();
+      throw exception;
+    }
+    mStream = stream;
+  }
+
+  /*
+   * @Return The next record as a JSON line without the line break, or null
+   *         at the end of the file.
+   */
+  public String readLine() throws IOException {
+    if (mReader != null) {
+      return mReader.readLine();
+    }
+    if (!mRecord.readBinaryFrom(mDecoder)) {
+      return null;
+    }
+    mBuilder.setLength(0);
+    mRecord.writeTo(mBuilder);
+    return mBuilder.toString();
+  }
+
+  /*
+   * Print the JSON lines of the analysis file.
+   */
+  public static void decode(final Path path, final PrintStream out) throws IOException {
+    try (MozSearchAnalysisReader reader = new MozSearchAnalysisReader(path)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        out.print(line);
+        out.print('\n');
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    mStream.close();
+  }
+}
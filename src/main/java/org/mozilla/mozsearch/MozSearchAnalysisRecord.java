@@ -0,0 +1,394 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
+import com.github.javaparser.ast.body.EnumConstantDeclaration;
+import com.github.javaparser.ast.body.EnumDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.ast.expr.SimpleName;
+import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.github.javaparser.ast.type.ReferenceType;
+import java.io.IOException;
+
+/*
+ * One line of mozsearch analysis.
+ *
+ * This replaces JSONObject for records. A visitor reuses one instance for
+ * all records, and the record is encoded directly into the output buffer
+ * without building a map or intermediate strings. Fields are always written
+ * in the same order, the one that JSONObject produced for these keys, so
+ * the output is same as before.
+ *
+ * Symbols are taken from a MozSearchSymbolInterner, so their "sym" and
+ * escaped forms are built once per run instead of once per record.
+ */
+public class MozSearchAnalysisRecord {
+  private final MozSearchSymbolInterner mInterner;
+  private final MozSearchSymbolInterner.Symbol mEmptySymbol;
+  private boolean mIsSource;
+  private int mLine;
+  private int mColumn;
+  private int mEndColumn;
+  private String mSyntax;
+  private String mKind;
+  private String mPrettyPrefix;
+  private MozSearchSymbolInterner.Symbol mSymbol;
+  private String mContext;
+  private boolean mNoCrossref;
+
+  // Symbols of a record with a table of its own.
+  private static final int LOCAL_SYMBOLS = 4096;
+
+  /*
+   * Create a record with a table of symbols of its own, for a single file
+   * or stream.
+   */
+  public MozSearchAnalysisRecord() {
+    this(new MozSearchSymbolInterner(LOCAL_SYMBOLS));
+  }
+
+  public MozSearchAnalysisRecord(final MozSearchSymbolInterner interner) {
+    mInterner = interner;
+    mEmptySymbol = interner.get("", "");
+    reset();
+  }
+
+  public MozSearchAnalysisRecord reset() {
+    mSyntax = null;
+    mKind = null;
+    mPrettyPrefix = "";
+    mSymbol = mEmptySymbol;
+    mContext = null;
+    mNoCrossref = false;
+    return this;
+  }
+
+  public boolean isSource() {
+    return mIsSource;
+  }
+
+  public int getLine() {
+    return mLine;
+  }
+
+  public int getColumn() {
+    return mColumn;
+  }
+
+  public int getEndColumn() {
+    return mEndColumn;
+  }
+
+  public String getSyntax() {
+    return mSyntax;
+  }
+
+  public String getKind() {
+    return mKind;
+  }
+
+  public String getContext() {
+    return mContext;
+  }
+
+  public boolean isNoCrossref() {
+    return mNoCrossref;
+  }
+
+  public String getPretty() {
+    return mPrettyPrefix + mSymbol.getScope() + mSymbol.getIdentifier();
+  }
+
+  public String getSymbol() {
+    return mSymbol.getSymbol();
+  }
+
+  public MozSearchAnalysisRecord addSourceLine(final SimpleName name) {
+    final Position begin = name.getBegin().get();
+    mIsSource = true;
+    mLine = begin.line;
+    mColumn = begin.column - 1;
+    mEndColumn = begin.column - 1 + name.getIdentifier().length();
+    return this;
+  }
+
+  public MozSearchAnalysisRecord addTargetLine(final SimpleName name) {
+    final Position begin = name.getBegin().get();
+    mIsSource = false;
+    mLine = begin.line;
+    mColumn = begin.column - 1;
+    return this;
+  }
+
+  public MozSearchAnalysisRecord addSymbol(final String scope, final SimpleName name) {
+    mSymbol = mInterner.get(scope, name.getIdentifier());
+    return this;
+  }
+
+  public MozSearchAnalysisRecord setNoCrossref() {
+    mNoCrossref = true;
+    return this;
+  }
+
+  private MozSearchAnalysisRecord source(final String syntax, final String prettyPrefix) {
+    mSyntax = syntax;
+    mPrettyPrefix = prettyPrefix;
+    return this;
+  }
+
+  private MozSearchAnalysisRecord target(final String kind, final String context) {
+    mKind = kind;
+    mContext = context;
+    return this;
+  }
+
+  public MozSearchAnalysisRecord addSource(final ClassOrInterfaceDeclaration n) {
+    if (n.isInterface()) {
+      return source("def,type", "interface ");
+    }
+    return source("def,type", "class ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final ClassOrInterfaceType n) {
+    return source("type,use", "class ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final ReferenceType n) {
+    return source("type,use", "class/interface/enum ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final ConstructorDeclaration n) {
+    return source("def,function", "constructor ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final MethodDeclaration n) {
+    return source("def,function", "method ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final Parameter n) {
+    return source("use,variable", "parameter ").setNoCrossref();
+  }
+
+  public MozSearchAnalysisRecord addSource(final EnumDeclaration n) {
+    return source("def,variable", "enum ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final EnumConstantDeclaration n) {
+    return source("def,variable", "enum constant ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final VariableDeclarator n, final String scope) {
+    if (scope.length() > 0) {
+      return source("def,variable", "member ");
+    }
+    return source("use,variable", "variable ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final MethodCallExpr n) {
+    return source("use,function", "method ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final ObjectCreationExpr n) {
+    return source("use,function", "constructor ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final FieldAccessExpr n) {
+    return source("use", "member ");
+  }
+
+  public MozSearchAnalysisRecord addSource(final NameExpr n, final String scope) {
+    if (scope.length() > 0) {
+      return source("use,variable", "member ");
+    }
+    return source("uselocal,variable", "variable ").setNoCrossref();
+  }
+
+  public MozSearchAnalysisRecord addDefinitionTarget(final String context) {
+    return target("def", context);
+  }
+
+  public MozSearchAnalysisRecord addUseTarget(final String context) {
+    return target("use", context);
+  }
+
+  // Same escaping as JSONObject.quote.
+  private static void quote(final StringBuilder builder, final String string) {
+    builder.append('"');
+    escape(builder, string, (char) 0, false);
+    builder.append('"');
+  }
+
+  // Escape scope and name for "pretty". Pretty prefixes end with a space,
+  // so the escaping of the name doesn't depend on the prefix.
+  static void escapeName(final StringBuilder builder, final String scope, final String name) {
+    final char c = escape(builder, scope, (char) 0, false);
+    escape(builder, name, c, false);
+  }
+
+  static void quoteSymbol(
+      final StringBuilder builder, final String scope, final String name) {
+    builder.append('"');
+    final char c = escape(builder, scope, (char) 0, true);
+    escape(builder, name, c, true);
+    builder.append('"');
+  }
+
+  private static char escape(
+      final StringBuilder builder, final String string, char c, final boolean isSymbol) {
+    for (int i = 0; i < string.length(); i++) {
+      final char b = c;
+      c = string.charAt(i);
+      if (isSymbol && c == '.') {
+        c = '#';
+      }
+      switch (c) {
+        case '\\':
+        case '"':
+          builder.append('\\').append(c);
+          break;
+        case '/':
+          if (b == '<') {
+            builder.append('\\');
+          }
+          builder.append(c);
+          break;
+        case '\b':
+          builder.append("\\b");
+          break;
+        case '\t':
+          builder.append("\\t");
+          break;
+        case '\n':
+          builder.append("\\n");
+          break;
+        case '\f':
+          builder.append("\\f");
+          break;
+        case '\r':
+          builder.append("\\r");
+          break;
+        default:
+          if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+            final String hex = Integer.toHexString(c);
+            builder.append("\\u").append("0000", 0, 4 - hex.length()).append(hex);
+          } else {
+            builder.append(c);
+          }
+      }
+    }
+    return c;
+  }
+
+  public void writeTo(final StringBuilder builder) {
+    builder.append('{');
+    if (mNoCrossref) {
+      builder.append("\"no_crossref\":1,");
+    }
+    builder.append("\"loc\":\"").append(mLine).append(':').append(mColumn);
+    if (mIsSource) {
+      builder.append('-').append(mEndColumn);
+    }
+    builder.append("\",\"pretty\":\"");
+    escape(builder, mPrettyPrefix, (char) 0, false);
+    builder.append(mSymbol.getEscapedName()).append('"');
+    if (mKind != null) {
+      builder.append(",\"kind\":\"").append(mKind).append('"');
+    }
+    builder.append(",\"sym\":").append(mSymbol.getQuotedSymbol());
+    if (mContext != null) {
+      builder.append(",\"context\":");
+      quote(builder, mContext);
+    }
+    if (mSyntax != null) {
+      builder.append(",\"syntax\":\"").append(mSyntax).append('"');
+    }
+    builder.append(mIsSource ? ",\"source\":1}" : ",\"target\":1}");
+  }
+
+  /*
+   * Write the record in the binary form, see MozSearchBinaryFormat.
+   */
+  public void writeBinaryTo(final MozSearchBinaryFormat.Encoder encoder) throws IOException {
+    int flags = 0;
+    if (mIsSource) {
+      flags |= MozSearchBinaryFormat.FLAG_SOURCE;
+    }
+    if (mNoCrossref) {
+      flags |= MozSearchBinaryFormat.FLAG_NO_CROSSREF;
+    }
+    if (mSyntax != null) {
+      flags |= MozSearchBinaryFormat.FLAG_SYNTAX;
+    }
+    if (mKind != null) {
+      flags |= MozSearchBinaryFormat.FLAG_KIND;
+    }
+    if (mContext != null) {
+      flags |= MozSearchBinaryFormat.FLAG_CONTEXT;
+    }
+    encoder.writeByte(flags);
+    encoder.writeLine(mLine);
+    encoder.writeVarint(mColumn);
+    if (mIsSource) {
+      encoder.writeVarint(mEndColumn - mColumn);
+    }
+    if (mSyntax != null) {
+      encoder.writeCode(MozSearchBinaryFormat.SYNTAXES, mSyntax);
+    }
+    if (mKind != null) {
+      encoder.writeCode(MozSearchBinaryFormat.KINDS, mKind);
+    }
+    encoder.writeCode(MozSearchBinaryFormat.PRETTY_PREFIXES, mPrettyPrefix);
+    encoder.writeString(mSymbol.getScope());
+    encoder.writeString(mSymbol.getIdentifier());
+    if (mContext != null) {
+      encoder.writeString(mContext);
+    }
+  }
+
+  /*
+   * Read the next record in the binary form.
+   *
+   * @Return false if there are no more records.
+   */
+  public boolean readBinaryFrom(final MozSearchBinaryFormat.Decoder decoder) throws IOException {
+    final int flags = decoder.readFlags();
+    if (flags < 0) {
+      return false;
+    }
+    reset();
+    mIsSource = (flags & MozSearchBinaryFormat.FLAG_SOURCE) != 0;
+    mNoCrossref = (flags & MozSearchBinaryFormat.FLAG_NO_CROSSREF) != 0;
+    mLine = decoder.readLine();
+    mColumn = decoder.readVarint();
+    if (mIsSource) {
+      mEndColumn = mColumn + decoder.readVarint();
+    }
+    if ((flags & MozSearchBinaryFormat.FLAG_SYNTAX) != 0) {
+      mSyntax = decoder.readCode(MozSearchBinaryFormat.SYNTAXES);
+    }
+    if ((flags & MozSearchBinaryFormat.FLAG_KIND) != 0) {
+      mKind = decoder.readCode(MozSearchBinaryFormat.KINDS);
+    }
+    mPrettyPrefix = decoder.readCode(MozSearchBinaryFormat.PRETTY_PREFIXES);
+    final String scope = decoder.readString();
+    mSymbol = mInterner.get(scope, decoder.readString());
+    if ((flags & MozSearchBinaryFormat.FLAG_CONTEXT) != 0) {
+      mContext = decoder.readString();
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder builder = new StringBuilder();
+    writeTo(builder);
+    return builder.toString();
+  }
+}
@@ -0,0 +1,203 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Output sink for one analysis file.
+ *
+ * Records are streamed into a temporary file next to the destination, which
+ * replaces the destination only when commit() is called. If the file isn't
+ * committed (e.g. the visitor throws), close() removes the temporary file, so
+ * a half-written analysis is never left behind.
+ *
+ * A buffered writer keeps the encoded records in memory instead, and only
+ * touches the disk in commit(). This lets the indexing pipeline encode
+ * records on a worker and leave the I/O to the threads of the write stage.
+ *
+ * Records are written as JSON lines, or in the binary form of
+ * MozSearchBinaryFormat, and can be gzip-compressed as they are written.
+ * Files of other forms have suffixes (see getSuffix()), and can be read
+ * with MozSearchAnalysisReader.
+ */
+public class MozSearchAnalysisWriter implements Closeable {
+  public static final String GZIP_SUFFIX = ".gz";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path mOutputPath;
+  private final Path mTempPath;
+  // Encoded records of a buffered writer, or null.
+  private final ByteArrayOutputStream mBuffer;
+  private final OutputStream mStream;
+  // One of these is null, depending on the form.
+  private final Writer mWriter;
+  private final MozSearchBinaryFormat.Encoder mEncoder;
+  // Reused for every record to avoid allocating a string per line.
+  private final StringBuilder mBuilder = new StringBuilder(256);
+  private char[] mChars = new char[256];
+  private int mRecordCount = 0;
+  private MozSearchSymbolIndexBuilder.FileSymbols mSymbols;
+  private boolean mClosed = false;
+
+  public MozSearchAnalysisWriter(final Path output) throws IOException {
+    this(output, false, false);
+  }
+
+  /*
+   * @Param output Destination path, which should have the suffix of
+   *               getSuffix().
+   * @Param compress Whether to gzip the records.
+   * @Param binary Whether to write the binary form instead of JSON.
+   */
+  public MozSearchAnalysisWriter(final Path output, final boolean compress, final boolean binary)
+      throws IOException {
+    this(output, compress, binary, false);
+  }
+
+  /*
+   * @Param buffered Whether to keep the records in memory until commit().
+   */
+  public MozSearchAnalysisWriter(
+      final Path output, final boolean compress, final boolean binary, final boolean buffered)
+      throws IOException {
+    mOutputPath = output;
+    // Files.createTempFile would make the output readable by the owner only.
+    mTempPath = output.resolveSibling("." + output.getFileName() + ".tmp");
+    OutputStream stream;
+    if (buffered) {
+      mBuffer = new ByteArrayOutputStream(BUFFER_SIZE);
+      stream = mBuffer;
+    } else {
+      mBuffer = null;
+      Files.createDirectories(output.getParent());
+      stream = Files.newOutputStream(mTempPath);
+    }
+    try {
+      if (compress) {
+        stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+      }
+      if (binary) {
+        mWriter = null;
+        mEncoder = new MozSearchBinaryFormat.Encoder(stream);
+      } else {
+        mWriter =
+            new BufferedWriter(
+                new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+        mEncoder = null;
+      }
+    } catch (IOException exception) {
+      stream.close();
+      Files.deleteIfExists(mTempPath);
+      throw exception;
+    }
+    mStream = stream;
+  }
+
+  /*
+   * @Return Suffix of analysis files of the form, added to the name of the
+   *         source file.
+   */
+  public static String getSuffix(final boolean compress, final boolean binary) {
+    final String suffix = binary ? MozSearchBinaryFormat.SUFFIX : "";
+    return compress ? suffix + GZIP_SUFFIX : suffix;
+  }
+
+  public Path getOutputPath() {
+    return mOutputPath;
+  }
+
+  public int getRecordCount() {
+    return mRecordCount;
+  }
+
+  /*
+   * Also collect definitions and uses of written records for a symbol
+   * index.
+   */
+  public void setSymbols(final MozSearchSymbolIndexBuilder.FileSymbols symbols) {
+    mSymbols = symbols;
+  }
+
+  public void write(final MozSearchAnalysisRecord record) throws IOException {
+    if (mSymbols != null) {
+      mSymbols.add(record);
+    }
+    if (mEncoder != null) {
+      record.writeBinaryTo(mEncoder);
+      mRecordCount++;
+      return;
+    }
+    mBuilder.setLength(0);
+    record.writeTo(mBuilder);
+    mBuilder.append('\n');
+    final int length = mBuilder.length();
+    if (mChars.length < length) {
+      mChars = new char[Math.max(length, mChars.length * 2)];
+    }
+    mBuilder.getChars(0, length, mChars, 0);
+    mWriter.write(mChars, 0, length);
+    mRecordCount++;
+  }
+
+  /*
+   * Flush all records and move them to the destination path.
+   *
+   * When no record was written, the destination is removed instead, same as
+   * a file that never had any output.
+   */
+  public void commit() throws IOException {
+    if (mEncoder != null) {
+      mEncoder.flush();
+      mStream.close();
+    } else {
+      mWriter.close();
+    }
+    mClosed = true;
+    if (mRecordCount == 0) {
+      Files.deleteIfExists(mTempPath);
+      Files.deleteIfExists(mOutputPath);
+      return;
+    }
+    if (mBuffer != null) {
+      Files.createDirectories(mOutputPath.getParent());
+      try (OutputStream stream = Files.newOutputStream(mTempPath)) {
+        mBuffer.writeTo(stream);
+      } catch (IOException exception) {
+        Files.deleteIfExists(mTempPath);
+        throw exception;
+      }
+    }
+    Files.move(
+        mTempPath,
+        mOutputPath,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      if (mWriter != null) {
+        mWriter.close();
+      } else {
+        mStream.close();
+      }
+    } finally {
+      Files.deleteIfExists(mTempPath);
+    }
+  }
+}
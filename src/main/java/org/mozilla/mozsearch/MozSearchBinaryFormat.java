@@ -0,0 +1,235 @@
+package org.mozilla.mozsearch;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Compact binary form of analysis files.
+ *
+ * A file starts with MAGIC and VERSION, followed by records:
+ *
+ *   flags       byte, see the FLAG_ constants
+ *   line        varint, zigzag-encoded difference from the previous record
+ *   column      varint
+ *   end column  varint, difference from column (source records only)
+ *   syntax      code in SYNTAXES (if FLAG_SYNTAX)
+ *   kind        code in KINDS (if FLAG_KIND)
+ *   pretty      code in PRETTY_PREFIXES
+ *   scope       string
+ *   identifier  string
+ *   context     string (if FLAG_CONTEXT)
+ *
+ * Symbols and pretty names aren't stored, they are built from the prefix,
+ * the scope and the identifier as MozSearchAnalysisRecord does. Strings are
+ * interned in a table per file: a string is written as its index in the
+ * table plus 1, or as 0 followed by the string when it is first used. A
+ * code is the index of the value in its table, or the size of the table
+ * followed by a string for values which aren't in the table.
+ *
+ * Files decode to the same JSON lines as the text form, see
+ * MozSearchAnalysisReader.
+ */
+public class MozSearchBinaryFormat {
+  public static final String SUFFIX = ".bin";
+  static final byte[] MAGIC = {'M', 'Z', 'S', 'B'};
+  static final int VERSION = 1;
+
+  static final int FLAG_SOURCE = 1;
+  static final int FLAG_NO_CROSSREF = 2;
+  static final int FLAG_SYNTAX = 4;
+  static final int FLAG_KIND = 8;
+  static final int FLAG_CONTEXT = 16;
+
+  static final String[] SYNTAXES = {
+    "def,type",
+    "type,use",
+    "def,function",
+    "def,variable",
+    "use,function",
+    "use,variable",
+    "uselocal,variable",
+    "use"
+  };
+  static final String[] KINDS = {"def", "use"};
+  static final String[] PRETTY_PREFIXES = {
+    "",
+    "class ",
+    "interface ",
+    "class/interface/enum ",
+    "constructor ",
+    "method ",
+    "parameter ",
+    "enum ",
+    "enum constant ",
+    "member ",
+    "variable "
+  };
+
+  /*
+   * Writes records of one file to a stream. The stream isn't closed.
+   */
+  public static class Encoder {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream mStream;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition = 0;
+    private final HashMap<String, Integer> mStrings = new HashMap<String, Integer>();
+    private int mLine = 0;
+
+    public Encoder(final OutputStream stream) throws IOException {
+      mStream = stream;
+      for (byte b : MAGIC) {
+        writeByte(b);
+      }
+      writeByte(VERSION);
+    }
+
+    void writeByte(final int b) throws IOException {
+      if (mPosition == mBuffer.length) {
+        flushBuffer();
+      }
+      mBuffer[mPosition++] = (byte) b;
+    }
+
+    void writeVarint(int value) throws IOException {
+      while ((value & ~0x7f) != 0) {
+        writeByte((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      writeByte(value);
+    }
+
+    void writeLine(final int line) throws IOException {
+      final int delta = line - mLine;
+      mLine = line;
+      writeVarint((delta << 1) ^ (delta >> 31));
+    }
+
+    // Characters are written as varints, so that any string is written
+    // exactly, and ASCII takes a byte per character.
+    private void writeChars(final String value) throws IOException {
+      writeVarint(value.length());
+      for (int i = 0; i < value.length(); i++) {
+        writeVarint(value.charAt(i));
+      }
+    }
+
+    void writeString(final String value) throws IOException {
+      final Integer index = mStrings.get(value);
+      if (index != null) {
+        writeVarint(index + 1);
+        return;
+      }
+      mStrings.put(value, mStrings.size());
+      writeVarint(0);
+      writeChars(value);
+    }
+
+    void writeCode(final String[] table, final String value) throws IOException {
+      for (int i = 0; i < table.length; i++) {
+        if (table[i].equals(value)) {
+          writeVarint(i);
+          return;
+        }
+      }
+      writeVarint(table.length);
+      writeString(value);
+    }
+
+    private void flushBuffer() throws IOException {
+      mStream.write(mBuffer, 0, mPosition);
+      mPosition = 0;
+    }
+
+    public void flush() throws IOException {
+      flushBuffer();
+      mStream.flush();
+    }
+  }
+
+  /*
+   * Reads records written by Encoder from a stream, which is positioned
+   * after MAGIC.
+   */
+  public static class Decoder {
+    private final InputStream mStream;
+    private final ArrayList<String> mStrings = new ArrayList<String>();
+    private final StringBuilder mBuilder = new StringBuilder();
+    private int mLine = 0;
+
+    public Decoder(final InputStream stream) throws IOException {
+      mStream = stream;
+      final int version = readByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported binary analysis version " + version);
+      }
+    }
+
+    /*
+     * @Return The next byte, or -1 at the end of the stream.
+     */
+    int readFlags() throws IOException {
+      return mStream.read();
+    }
+
+    int readByte() throws IOException {
+      final int b = mStream.read();
+      if (b < 0) {
+        throw new EOFException("Truncated binary analysis");
+      }
+      return b;
+    }
+
+    int readVarint() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        final int b = readByte();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint in binary analysis");
+    }
+
+    int readLine() throws IOException {
+      final int zigzag = readVarint();
+      mLine += (zigzag >>> 1) ^ -(zigzag & 1);
+      return mLine;
+    }
+
+    String readString() throws IOException {
+      final int index = readVarint();
+      if (index > 0) {
+        if (index > mStrings.size()) {
+          throw new IOException("Bad string reference in binary analysis");
+        }
+        return mStrings.get(index - 1);
+      }
+      final int length = readVarint();
+      mBuilder.setLength(0);
+      for (int i = 0; i < length; i++) {
+        mBuilder.append((char) readVarint());
+      }
+      final String value = mBuilder.toString();
+      mStrings.add(value);
+      return value;
+    }
+
+    String readCode(final String[] table) throws IOException {
+      final int code = readVarint();
+      if (code < table.length) {
+        return table[code];
+      }
+      if (code > table.length) {
+        throw new IOException("Bad code in binary analysis");
+      }
+      return readString();
+    }
+  }
+}
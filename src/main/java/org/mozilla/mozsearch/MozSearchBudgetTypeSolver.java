@@ -0,0 +1,48 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
+import com.github.javaparser.symbolsolver.model.resolution.SymbolReference;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+
+/*
+ * Root type solver of a worker which counts every type lookup as a step of
+ * the resolution budget.
+ *
+ * Child solvers look up types through the root too, so this sees all
+ * lookups of a resolution, and aborts it by throwing when it runs out of
+ * steps. Types which no child solver has are kept in a run-wide
+ * MozSearchUnresolvedTypeCache, and aren't looked up in the children
+ * again. A cached lookup is charged the steps that the children took to
+ * fail, so the output doesn't depend on which worker looked up a type
+ * first. Simple names aren't cached, since they can be types of the
+ * default package of the file being resolved (see MozSearchPackageIndex).
+ */
+public class MozSearchBudgetTypeSolver extends CombinedTypeSolver {
+  private final MozSearchResolutionBudget mBudget;
+  private final MozSearchUnresolvedTypeCache mUnresolved;
+
+  public MozSearchBudgetTypeSolver(
+      final MozSearchResolutionBudget budget, final MozSearchUnresolvedTypeCache unresolved) {
+    super();
+    mBudget = budget;
+    mUnresolved = unresolved;
+  }
+
+  @Override
+  public SymbolReference<ResolvedReferenceTypeDeclaration> tryToSolveType(final String name) {
+    mBudget.step();
+    final boolean qualified = name.indexOf('.') >= 0;
+    final long cachedSteps = qualified ? mUnresolved.getSteps(name) : -1;
+    if (cachedSteps >= 0) {
+      mBudget.charge(cachedSteps);
+      return SymbolReference.unsolved(ResolvedReferenceTypeDeclaration.class);
+    }
+    final long start = mBudget.getSteps();
+    final SymbolReference<ResolvedReferenceTypeDeclaration> reference =
+        super.tryToSolveType(name);
+    if (!reference.isSolved() && qualified) {
+      mUnresolved.add(name, mBudget.getSteps() - start);
+    }
+    return reference;
+  }
+}
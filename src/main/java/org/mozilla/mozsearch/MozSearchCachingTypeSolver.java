@@ -0,0 +1,53 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
+import com.github.javaparser.symbolsolver.model.resolution.SymbolReference;
+import com.github.javaparser.symbolsolver.model.resolution.TypeSolver;
+
+/*
+ * Wraps a type solver of a stable library (e.g. ReflectionTypeSolver for the
+ * JDK), and answers lookups of types that the library doesn't have from a
+ * persistent MozSearchSymbolCache, without asking the library.
+ *
+ * Only the types that the library doesn't have are kept in the cache. The
+ * declarations of the types it has aren't kept, so they are still loaded
+ * from the library.
+ */
+public class MozSearchCachingTypeSolver implements TypeSolver {
+  private final TypeSolver mSolver;
+  private final MozSearchSymbolCache mCache;
+  private TypeSolver mParent;
+
+  public MozSearchCachingTypeSolver(final TypeSolver solver, final MozSearchSymbolCache cache) {
+    mSolver = solver;
+    mCache = cache;
+  }
+
+  @Override
+  public TypeSolver getParent() {
+    return mParent;
+  }
+
+  @Override
+  public void setParent(TypeSolver parent) {
+    if (mParent != null) {
+      throw new IllegalStateException("This TypeSolver already has a parent.");
+    }
+    mParent = parent;
+    // The wrapped solver has to resolve other types through the same root.
+    mSolver.setParent(parent);
+  }
+
+  @Override
+  public SymbolReference<ResolvedReferenceTypeDeclaration> tryToSolveType(String name) {
+    if (MozSearchSymbolCache.ABSENT.equals(mCache.get(name))) {
+      return SymbolReference.unsolved(ResolvedReferenceTypeDeclaration.class);
+    }
+    final SymbolReference<ResolvedReferenceTypeDeclaration> reference =
+        mSolver.tryToSolveType(name);
+    if (!reference.isSolved()) {
+      mCache.put(name, MozSearchSymbolCache.ABSENT);
+    }
+    return reference;
+  }
+}
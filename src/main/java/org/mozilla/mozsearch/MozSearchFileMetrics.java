@@ -0,0 +1,266 @@
+package org.mozilla.mozsearch;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONObject;
+
+/*
+ * Timings and resolution counts of indexing one file.
+ *
+ * An instance is owned by the worker indexing the file, so it isn't thread
+ * safe. Resolutions are counted by the type of the node being resolved
+ * (MethodCallExpr, NameExpr and so on), and failed resolutions by the
+ * symbol which couldn't be resolved.
+ */
+public class MozSearchFileMetrics {
+  public static class ResolveCounts {
+    private long mAttempts = 0;
+    private long mResolved = 0;
+    private long mAborted = 0;
+    private long mSkipped = 0;
+    private long mSteps = 0;
+    private long mNanos = 0;
+
+    public long getAttempts() {
+      return mAttempts;
+    }
+
+    public long getResolved() {
+      return mResolved;
+    }
+
+    public long getFailed() {
+      return mAttempts - mResolved;
+    }
+
+    /*
+     * @Return Number of resolutions which ran out of the per-call budget.
+     *         These are counted as failed too.
+     */
+    public long getAborted() {
+      return mAborted;
+    }
+
+    /*
+     * @Return Number of nodes which weren't resolved because of the file
+     *         budget or the timeout. These aren't counted as attempts.
+     */
+    public long getSkipped() {
+      return mSkipped;
+    }
+
+    public long getSteps() {
+      return mSteps;
+    }
+
+    public long getNanos() {
+      return mNanos;
+    }
+
+    void add(final ResolveCounts counts) {
+      mAttempts += counts.mAttempts;
+      mResolved += counts.mResolved;
+      mAborted += counts.mAborted;
+      mSkipped += counts.mSkipped;
+      mSteps += counts.mSteps;
+      mNanos += counts.mNanos;
+    }
+
+    JSONObject toJSON() {
+      return new JSONObject()
+          .put("attempts", mAttempts)
+          .put("resolved", mResolved)
+          .put("failed", getFailed())
+          .put("aborted", mAborted)
+          .put("skipped", mSkipped)
+          .put("steps", mSteps)
+          .put("ms", mNanos / 1000000);
+    }
+  }
+
+  public static class FailureCounts {
+    private long mCount = 0;
+    private long mNanos = 0;
+
+    public long getCount() {
+      return mCount;
+    }
+
+    public long getNanos() {
+      return mNanos;
+    }
+
+    void add(final FailureCounts counts) {
+      mCount += counts.mCount;
+      mNanos += counts.mNanos;
+    }
+  }
+
+  private final String mPath;
+  private long mParseNanos = 0;
+  private long mVisitNanos = 0;
+  private int mRecordCount = 0;
+  private boolean mLongTask = false;
+  private boolean mCompleted = false;
+  private long mSteps = 0;
+  private final LinkedHashMap<Class<?>, ResolveCounts> mResolveCounts =
+      new LinkedHashMap<Class<?>, ResolveCounts>();
+  private final HashMap<String, FailureCounts> mFailures = new HashMap<String, FailureCounts>();
+
+  public MozSearchFileMetrics(final String path) {
+    mPath = path;
+  }
+
+  public String getPath() {
+    return mPath;
+  }
+
+  public long getParseNanos() {
+    return mParseNanos;
+  }
+
+  public void setParseNanos(final long nanos) {
+    mParseNanos = nanos;
+  }
+
+  public long getVisitNanos() {
+    return mVisitNanos;
+  }
+
+  public void setVisitNanos(final long nanos) {
+    mVisitNanos = nanos;
+  }
+
+  public long getTotalNanos() {
+    return mParseNanos + mVisitNanos;
+  }
+
+  public int getRecordCount() {
+    return mRecordCount;
+  }
+
+  public void setRecordCount(final int count) {
+    mRecordCount = count;
+  }
+
+  /*
+   * @Return Whether the visitor stopped resolving types because the file
+   *         took too long.
+   */
+  public boolean isLongTask() {
+    return mLongTask;
+  }
+
+  public void setLongTask() {
+    mLongTask = true;
+  }
+
+  /*
+   * @Return Whether the file was written successfully. False if parsing or
+   *         visiting failed.
+   */
+  public boolean isCompleted() {
+    return mCompleted;
+  }
+
+  public void setCompleted() {
+    mCompleted = true;
+  }
+
+  /*
+   * @Return Steps of the resolution budget used by the file.
+   */
+  public long getSteps() {
+    return mSteps;
+  }
+
+  private ResolveCounts getCounts(final Class<?> type) {
+    ResolveCounts counts = mResolveCounts.get(type);
+    if (counts == null) {
+      counts = new ResolveCounts();
+      mResolveCounts.put(type, counts);
+    }
+    return counts;
+  }
+
+  /*
+   * Count a resolution attempt.
+   *
+   * @Param type Type of the node being resolved.
+   * @Param resolved Whether the resolution succeeded.
+   * @Param aborted Whether the resolution ran out of the per-call budget.
+   * @Param steps Steps of the resolution budget used by the resolution.
+   * @Param nanos Time spent on the resolution.
+   */
+  public void addResolve(
+      final Class<?> type,
+      final boolean resolved,
+      final boolean aborted,
+      final long steps,
+      final long nanos) {
+    final ResolveCounts counts = getCounts(type);
+    counts.mAttempts++;
+    if (resolved) {
+      counts.mResolved++;
+    }
+    if (aborted) {
+      counts.mAborted++;
+    }
+    counts.mSteps += steps;
+    counts.mNanos += nanos;
+    mSteps += steps;
+  }
+
+  /*
+   * Count a node which wasn't resolved because of the budget or the timeout.
+   */
+  public void addSkipped(final Class<?> type) {
+    getCounts(type).mSkipped++;
+  }
+
+  /*
+   * Count a failed resolution by the symbol which couldn't be resolved.
+   *
+   * @Param name Name of the unresolved symbol, or the type of the error if
+   *             the resolution failed for another reason.
+   * @Param nanos Time spent on the resolution.
+   */
+  public void addFailure(final String name, final long nanos) {
+    FailureCounts counts = mFailures.get(name);
+    if (counts == null) {
+      counts = new FailureCounts();
+      mFailures.put(name, counts);
+    }
+    counts.mCount++;
+    counts.mNanos += nanos;
+  }
+
+  public Map<String, FailureCounts> getFailures() {
+    return mFailures;
+  }
+
+  public Map<Class<?>, ResolveCounts> getResolveCounts() {
+    return mResolveCounts;
+  }
+
+  static JSONObject toJSON(final Map<Class<?>, ResolveCounts> counts) {
+    final JSONObject obj = new JSONObject();
+    for (Map.Entry<Class<?>, ResolveCounts> entry : counts.entrySet()) {
+      obj.put(entry.getKey().getSimpleName(), entry.getValue().toJSON());
+    }
+    return obj;
+  }
+
+  public JSONObject toJSON() {
+    return new JSONObject()
+        .put("path", mPath)
+        .put("parse_ms", mParseNanos / 1000000)
+        .put("visit_ms", mVisitNanos / 1000000)
+        .put("records", mRecordCount)
+        .put("long_task", mLongTask)
+        .put("completed", mCompleted)
+        .put("steps", mSteps)
+        .put("resolve", toJSON(mResolveCounts));
+  }
+}
@@ -0,0 +1,141 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONObject;
+
+/*
+ * Time taken to index each file of a tree, kept across runs to predict the
+ * cost of indexing the files again.
+ *
+ * A file indexed before is predicted to take the same time, scaled by the
+ * change of its size. Other files are predicted from their size and the
+ * average time per byte of the previous run, or by their size alone on
+ * the first run.
+ *
+ * Files which are predicted but not indexed in a run (e.g. files which
+ * didn't change in an incremental run) keep their previous time. Files
+ * which aren't predicted anymore are dropped when saving.
+ */
+public class MozSearchFileTimings {
+  private static final int VERSION = 1;
+
+  private static class Entry {
+    final long mSize;
+    final long mNanos;
+
+    Entry(final long size, final long nanos) {
+      mSize = size;
+      mNanos = nanos;
+    }
+  }
+
+  private final Path mPath;
+  private final HashMap<String, Entry> mPrevious = new HashMap<String, Entry>();
+  private final ConcurrentHashMap<String, Entry> mCurrent = new ConcurrentHashMap<String, Entry>();
+  private double mNanosPerByte = 1.0;
+
+  /*
+   * @Param cacheDir Directory to keep the timings in.
+   * @Param sourceDir Source tree of the timings, so that trees can share
+   *                  the cache directory.
+   * @Param shard Shard of the tree indexed by the run, or null for the whole
+   *              tree. Each shard keeps its own timings, since a run drops
+   *              the files it didn't walk, and shards can run at the same
+   *              time.
+   */
+  public MozSearchFileTimings(
+      final Path cacheDir, final Path sourceDir, final MozSearchShard shard) {
+    String key = sourceDir.toAbsolutePath().toString();
+    if (shard != null) {
+      key += " " + MozSearchShard.getManifestName(shard.getIndex(), shard.getCount());
+    }
+    mPath = cacheDir.resolve(MozSearchSymbolCache.sha1(key) + ".timings");
+  }
+
+  /*
+   * Load the timings of the previous run. Missing or broken timings are same
+   * as none, so files are predicted by their size.
+   */
+  public void load() {
+    if (!Files.exists(mPath)) {
+      return;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(mPath, StandardCharsets.UTF_8)) {
+      final JSONObject header = new JSONObject(reader.readLine());
+      if (header.getInt("version") != VERSION) {
+        return;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final JSONObject obj = new JSONObject(line);
+        mPrevious.put(obj.getString("path"), new Entry(obj.getLong("size"), obj.getLong("ns")));
+      }
+    } catch (Exception exception) {
+      System.err.println("Ignoring broken timings: " + exception);
+      mPrevious.clear();
+    }
+    long bytes = 0;
+    long nanos = 0;
+    for (Entry entry : mPrevious.values()) {
+      bytes += entry.mSize;
+      nanos += entry.mNanos;
+    }
+    if (bytes > 0 && nanos > 0) {
+      mNanosPerByte = (double) nanos / bytes;
+    }
+  }
+
+  /*
+   * @Param path Path of the file relative to the source directory.
+   * @Param size Current size of the file.
+   * @Return Predicted time to index the file in nanoseconds.
+   */
+  public long predict(final String path, final long size) {
+    final Entry previous = mPrevious.get(path);
+    if (previous == null) {
+      return (long) (size * mNanosPerByte);
+    }
+    mCurrent.putIfAbsent(path, previous);
+    if (previous.mSize == 0 || previous.mSize == size) {
+      return previous.mNanos;
+    }
+    return (long) ((double) previous.mNanos * size / previous.mSize);
+  }
+
+  /*
+   * Record the time of a file indexed in this run. This can be called from
+   * any worker.
+   */
+  public void record(final String path, final long size, final long nanos) {
+    mCurrent.put(path, new Entry(size, nanos));
+  }
+
+  public void save() throws IOException {
+    final Path tempPath = mPath.resolveSibling(mPath.getFileName() + ".tmp");
+    Files.createDirectories(mPath.getParent());
+    try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+      writer.write(new JSONObject().put("version", VERSION).toString());
+      writer.write('\n');
+      for (Map.Entry<String, Entry> entry : new TreeMap<String, Entry>(mCurrent).entrySet()) {
+        final JSONObject obj = new JSONObject();
+        obj.put("path", entry.getKey())
+            .put("size", entry.getValue().mSize)
+            .put("ns", entry.getValue().mNanos);
+        writer.write(obj.toString());
+        writer.write('\n');
+      }
+    }
+    Files.move(
+        tempPath, mPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,92 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/*
+ * Client of MozSearchIndexServer, which submits a job and prints the
+ * progress of the server as files are indexed.
+ */
+public class MozSearchIndexClient {
+  private final int mPort;
+  private final String mToken;
+
+  /*
+   * @Param serverFile File with the port and the token, written by the
+   *                   server.
+   */
+  public MozSearchIndexClient(final Path serverFile) throws IOException {
+    final String[] fields =
+        new String(Files.readAllBytes(serverFile), StandardCharsets.UTF_8).trim().split(" ");
+    if (fields.length != 2) {
+      throw new IOException("Bad server file: " + serverFile);
+    }
+    try {
+      mPort = Integer.parseInt(fields[0]);
+    } catch (NumberFormatException exception) {
+      throw new IOException("Bad server file: " + serverFile);
+    }
+    mToken = fields[1];
+  }
+
+  /*
+   * Index changed, added or deleted files and directories.
+   *
+   * @Param out Stream to print the lines of the server to.
+   * @Return Whether every file was indexed.
+   */
+  public boolean index(final List<Path> paths, final PrintStream out) throws IOException {
+    final StringBuilder request = new StringBuilder();
+    request.append(MozSearchIndexServer.INDEX).append('\n');
+    for (Path path : paths) {
+      request.append(path.toAbsolutePath().toString()).append('\n');
+    }
+    request.append('\n');
+    return send(request.toString(), out);
+  }
+
+  /*
+   * Stop the server.
+   */
+  public boolean stop(final PrintStream out) throws IOException {
+    return send(MozSearchIndexServer.STOP + "\n", out);
+  }
+
+  private boolean send(final String request, final PrintStream out) throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mPort)) {
+      final PrintWriter writer =
+          new PrintWriter(
+              new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+      writer.print(mToken + "\n" + request);
+      writer.flush();
+
+      final BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      boolean succeeded = true;
+      boolean done = false;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        out.println(line);
+        if (line.startsWith(MozSearchIndexServer.FAILED)
+            || line.startsWith(MozSearchIndexServer.ERROR)) {
+          succeeded = false;
+        }
+        if (line.startsWith(MozSearchIndexServer.DONE)) {
+          done = true;
+        }
+      }
+      return succeeded && done;
+    }
+  }
+}
@@ -0,0 +1,307 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+ * Manifest of indexed files for incremental indexing.
+ *
+ * For every source file, this records size, mtime, content hash, the types
+ * that the file defines and the symbols that its analysis refers to. On the
+ * next run, a file is indexed again only when its content changed, or when
+ * it refers to a type defined in a changed or deleted file.
+ *
+ * Dependencies aren't followed further: a file which refers only to types
+ * of unchanged files isn't indexed again, even when the resolution of its
+ * references depends on a changed file, such as one with a supertype of a
+ * type it uses. Following them would index most of the tree again for a
+ * change of a common type.
+ *
+ * A type which is newly added doesn't make files that failed to resolve it
+ * before dirty. Run without the manifest to pick those up.
+ */
+public class MozSearchIndexManifest {
+  public static final String FILE_NAME = ".mozsearch-java-manifest";
+  private static final int VERSION = 1;
+
+  private static class Entry {
+    final long mSize;
+    final long mModifiedTime;
+    final String mHash;
+    final Set<String> mTypes;
+    final Set<String> mDependencies;
+
+    Entry(
+        final long size,
+        final long modifiedTime,
+        final String hash,
+        final Set<String> types,
+        final Set<String> dependencies) {
+      mSize = size;
+      mModifiedTime = modifiedTime;
+      mHash = hash;
+      mTypes = types;
+      mDependencies = dependencies;
+    }
+  }
+
+  private final Path mSourceDir;
+  private final Path mManifestPath;
+  private final MozSearchPathFilter mFilter;
+  private final HashMap<String, Entry> mPrevious = new HashMap<String, Entry>();
+  private final ConcurrentHashMap<String, Entry> mCurrent = new ConcurrentHashMap<String, Entry>();
+  private final Set<String> mDirtyFiles = new HashSet<String>();
+  private final List<String> mDeletedFiles = new ArrayList<String>();
+
+  /*
+   * @Param filter Files to ignore, same as the indexer. Outputs of files
+   *               which became ignored are removed as deleted files.
+   */
+  public MozSearchIndexManifest(
+      final Path sourceDir, final Path outputDir, final MozSearchPathFilter filter) {
+    mSourceDir = sourceDir.toAbsolutePath();
+    mManifestPath = outputDir.toAbsolutePath().resolve(FILE_NAME);
+    mFilter = filter;
+  }
+
+  private String getRelativePath(final Path file) {
+    return mSourceDir.relativize(file.toAbsolutePath()).toString();
+  }
+
+  private static Set<String> toSet(final JSONArray array) {
+    final HashSet<String> set = new HashSet<String>();
+    for (int i = 0; i < array.length(); i++) {
+      set.add(array.getString(i));
+    }
+    return set;
+  }
+
+  /*
+   * Load the manifest of the previous run. A missing or broken manifest is
+   * same as an empty one, so all files are indexed.
+   */
+  public void load() {
+    if (!Files.exists(mManifestPath)) {
+      return;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(mManifestPath, StandardCharsets.UTF_8)) {
+      final JSONObject header = new JSONObject(reader.readLine());
+      if (header.getInt("version") != VERSION) {
+        return;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final JSONObject obj = new JSONObject(line);
+        mPrevious.put(
+            obj.getString("path"),
+            new Entry(
+                obj.getLong("size"),
+                obj.getLong("mtime"),
+                obj.getString("hash"),
+                toSet(obj.getJSONArray("types")),
+                toSet(obj.getJSONArray("deps"))));
+      }
+    } catch (Exception exception) {
+      System.err.println("Ignoring broken manifest: " + exception);
+      mPrevious.clear();
+    }
+  }
+
+  /*
+   * @Return The hash of the text of a file, as it's indexed. Bytes which
+   *         aren't valid in the encoding of the file are hashed as they're
+   *         decoded.
+   */
+  public static String hash(final String text) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      final StringBuilder builder = new StringBuilder();
+      for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+        builder.append(String.format("%02x", b));
+      }
+      return builder.toString();
+    } catch (NoSuchAlgorithmException exception) {
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  /*
+   * Compare the source tree with the previous manifest, and find files to
+   * index and files that were removed.
+   *
+   * @Param sources Reader of the text of files whose size or mtime changed,
+   *                which is the same as the indexer reads.
+   */
+  public void scan(final MozSearchPackageIndex.SourceReader sources) throws IOException {
+    final Set<String> changedTypes = new HashSet<String>();
+    final Set<String> seen = new HashSet<String>();
+
+    Files.walkFileTree(
+        mSourceDir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (mFilter.isIgnored(dir)) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            if (attrs.isDirectory()
+                || !file.toString().endsWith(".java")
+                || mFilter.isIgnored(file)) {
+              return FileVisitResult.CONTINUE;
+            }
+            final String path = getRelativePath(file);
+            seen.add(path);
+
+            final Entry previous = mPrevious.get(path);
+            if (previous == null) {
+              mDirtyFiles.add(path);
+              return FileVisitResult.CONTINUE;
+            }
+            final long size = attrs.size();
+            final long modifiedTime = attrs.lastModifiedTime().toMillis();
+            if (previous.mSize == size && previous.mModifiedTime == modifiedTime) {
+              mCurrent.put(path, previous);
+              return FileVisitResult.CONTINUE;
+            }
+            // mtime is changed, but the content might be same (e.g. checkout).
+            final String hash = hash(sources.read(file));
+            if (previous.mHash.equals(hash)) {
+              mCurrent.put(
+                  path,
+                  new Entry(
+                      size, modifiedTime, hash, previous.mTypes, previous.mDependencies));
+              return FileVisitResult.CONTINUE;
+            }
+            mDirtyFiles.add(path);
+            changedTypes.addAll(previous.mTypes);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exception) {
+            System.err.println(exception);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+
+    for (Map.Entry<String, Entry> entry : mPrevious.entrySet()) {
+      if (!seen.contains(entry.getKey())) {
+        mDeletedFiles.add(entry.getKey());
+        changedTypes.addAll(entry.getValue().mTypes);
+      }
+    }
+
+    // Files which refer to changed types have to be indexed again.
+    if (!changedTypes.isEmpty()) {
+      for (Map.Entry<String, Entry> entry : mCurrent.entrySet()) {
+        for (String dependency : entry.getValue().mDependencies) {
+          if (changedTypes.contains(dependency)) {
+            mDirtyFiles.add(entry.getKey());
+            break;
+          }
+        }
+      }
+    }
+    for (String path : mDirtyFiles) {
+      mCurrent.remove(path);
+    }
+  }
+
+  public boolean isDirty(final Path file) {
+    return mDirtyFiles.contains(getRelativePath(file));
+  }
+
+  /*
+   * @Return Relative paths of source files which were removed since the
+   *         previous run.
+   */
+  public List<String> getDeletedFiles() {
+    return mDeletedFiles;
+  }
+
+  /*
+   * Record a file which was indexed successfully. The attributes are those
+   * the file had before its text was read, so that a change while it was
+   * indexed is found on the next run.
+   *
+   * @Param size Size of the file.
+   * @Param modifiedTime Modification time of the file, in milliseconds.
+   * @Param hash Hash of the text which was indexed (see hash()).
+   * @Param types Types defined in the file, in "sym" form (a#b#C).
+   * @Param symbols Symbols that the analysis of the file refers to.
+   */
+  public void update(
+      final Path file,
+      final long size,
+      final long modifiedTime,
+      final String hash,
+      final Collection<String> types,
+      final Set<String> symbols) {
+    final HashSet<String> dependencies = new HashSet<String>();
+    for (String symbol : symbols) {
+      // Both the symbol itself (type use) and its owner (member use)
+      dependencies.add(symbol);
+      final int index = symbol.lastIndexOf('#');
+      if (index > 0) {
+        dependencies.add(symbol.substring(0, index));
+      }
+    }
+    mCurrent.put(
+        getRelativePath(file),
+        new Entry(size, modifiedTime, hash, new HashSet<String>(types), dependencies));
+  }
+
+  public void save() throws IOException {
+    final Path tempPath = mManifestPath.resolveSibling(FILE_NAME + ".tmp");
+    Files.createDirectories(mManifestPath.getParent());
+    try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+      writer.write(new JSONObject().put("version", VERSION).toString());
+      writer.write('\n');
+      // Sort entries to make the manifest stable.
+      for (Map.Entry<String, Entry> entry : new TreeMap<String, Entry>(mCurrent).entrySet()) {
+        final Entry value = entry.getValue();
+        final JSONObject obj = new JSONObject();
+        obj.put("path", entry.getKey())
+            .put("size", value.mSize)
+            .put("mtime", value.mModifiedTime)
+            .put("hash", value.mHash)
+            .put("types", new JSONArray(value.mTypes))
+            .put("deps", new JSONArray(value.mDependencies));
+        writer.write(obj.toString());
+        writer.write('\n');
+      }
+    }
+    Files.move(
+        tempPath,
+        mManifestPath,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
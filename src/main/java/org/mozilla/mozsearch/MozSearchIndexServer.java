@@ -0,0 +1,289 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.symbolsolver.javaparsermodel.JavaParserFacade;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Indexer server which keeps the JVM, the jars and the type solvers of
+ * workers warm across jobs.
+ *
+ * The server listens on a free loopback port and runs one job at a time.
+ * Other users of the machine can connect to the port too, so the server
+ * writes the port and a random token to a file which only its user can
+ * read, and clients send the token first. Paths outside the source
+ * directory are rejected.
+ *
+ * A job is a list of changed files or directories, added or deleted ones
+ * included. Before indexing, the solver caches of the source roots which
+ * contain the files are invalidated, and the caches of other roots are
+ * kept.
+ *
+ * Protocol, in UTF-8 lines: the client sends the token, then "index",
+ * absolute paths one per line, and an empty line, or "stop". The server
+ * answers a line per file ("indexed", "failed" or "deleted" and the path),
+ * "error" lines for bad requests, then "done" with the counts of indexed
+ * and failed files. See MozSearchIndexClient.
+ */
+public class MozSearchIndexServer implements Closeable {
+  public static final String INDEX = "index";
+  public static final String STOP = "stop";
+  public static final String INDEXED = "indexed";
+  public static final String FAILED = "failed";
+  public static final String DELETED = "deleted";
+  public static final String ERROR = "error";
+  public static final String DONE = "done";
+
+  private static final int TOKEN_BYTES = 32;
+  // Time for a client to send the token, so that others can't hold the
+  // server.
+  private static final int TOKEN_TIMEOUT_MS = 10000;
+
+  private final MozSearchJavaIndexer mIndexer;
+  private final Path mServerFile;
+  private final byte[] mToken;
+  private final ServerSocket mSocket;
+
+  /*
+   * @Param serverFile File to write the port and the token to, for
+   *                   MozSearchIndexClient. It's replaced if it exists,
+   *                   and deleted by close().
+   */
+  public MozSearchIndexServer(final MozSearchJavaIndexer indexer, final Path serverFile)
+      throws IOException {
+    mIndexer = indexer;
+    mServerFile = serverFile;
+    final byte[] random = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(random);
+    final StringBuilder token = new StringBuilder(TOKEN_BYTES * 2);
+    for (byte b : random) {
+      token.append(String.format("%02x", b & 0xff));
+    }
+    mToken = token.toString().getBytes(StandardCharsets.UTF_8);
+    mSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+    try {
+      writeServerFile(serverFile, mSocket.getLocalPort() + " " + token + "\n");
+    } catch (IOException exception) {
+      mSocket.close();
+      throw exception;
+    }
+  }
+
+  private static void writeServerFile(final Path file, final String content) throws IOException {
+    // Create the file anew, so that it's never readable by others, even for
+    // a moment, and a link put in its place isn't followed.
+    Files.deleteIfExists(file);
+    try {
+      Files.createFile(
+          file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException exception) {
+      // Without POSIX permissions, such as on Windows, the file gets those
+      // of its directory.
+      Files.createFile(file);
+    } catch (FileAlreadyExistsException exception) {
+      throw new IOException("Server file was created by another process: " + file);
+    }
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public int getPort() {
+    return mSocket.getLocalPort();
+  }
+
+  /*
+   * Serve jobs until a client sends "stop".
+   */
+  public void serve() throws IOException {
+    final ExecutorService executor = Executors.newFixedThreadPool(mIndexer.getThreadPoolCount());
+    try (MozSearchTypeSolverRegistry registry = mIndexer.openRegistry()) {
+      final MozSearchPathFilter filter = mIndexer.createFilter();
+      boolean stopped = false;
+      while (!stopped) {
+        try (Socket client = mSocket.accept()) {
+          stopped = handle(client, registry, filter, executor);
+        } catch (IOException exception) {
+          System.err.println(exception);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // @Return Whether the server should stop.
+  private boolean handle(
+      final Socket client,
+      final MozSearchTypeSolverRegistry registry,
+      final MozSearchPathFilter filter,
+      final ExecutorService executor)
+      throws IOException {
+    final BufferedReader reader =
+        new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+    final PrintWriter writer =
+        new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+    client.setSoTimeout(TOKEN_TIMEOUT_MS);
+    final String token = reader.readLine();
+    if (token == null || !MessageDigest.isEqual(mToken, token.getBytes(StandardCharsets.UTF_8))) {
+      writer.println(ERROR + " Bad token");
+      writer.flush();
+      return false;
+    }
+    client.setSoTimeout(0);
+    final String command = reader.readLine();
+    if (STOP.equals(command)) {
+      writer.println(DONE + " 0 0");
+      writer.flush();
+      return true;
+    }
+    if (!INDEX.equals(command)) {
+      writer.println(ERROR + " Unknown command: " + command);
+      writer.flush();
+      return false;
+    }
+
+    final List<Path> paths = new ArrayList<Path>();
+    String line;
+    while ((line = reader.readLine()) != null && line.length() > 0) {
+      paths.add(Paths.get(line).toAbsolutePath().normalize());
+    }
+    runJob(paths, registry, filter, executor, writer);
+    return false;
+  }
+
+  private void runJob(
+      final List<Path> paths,
+      final MozSearchTypeSolverRegistry registry,
+      final MozSearchPathFilter filter,
+      final ExecutorService executor,
+      final PrintWriter writer)
+      throws IOException {
+    final List<Path> files = new ArrayList<Path>();
+    final List<Path> changed = new ArrayList<Path>();
+    for (Path path : paths) {
+      if (!path.startsWith(mIndexer.getSourceDir())) {
+        writer.println(ERROR + " Not in the source directory: " + path);
+        continue;
+      }
+      if (Files.isDirectory(path)) {
+        addFiles(path, filter, files);
+      } else if (Files.exists(path)) {
+        if (path.toString().endsWith(".java") && !filter.isIgnored(path)) {
+          files.add(path);
+        }
+      } else if (path.toString().endsWith(".java")) {
+        mIndexer.removeOutput(path);
+        changed.add(path);
+        writer.println(DELETED + " " + path);
+      }
+    }
+    changed.addAll(files);
+    writer.flush();
+
+    // Workers are idle between jobs, so solvers can be changed here.
+    registry.invalidate(changed);
+
+    // Symbols are kept for this job only, so that the server doesn't keep
+    // those of every job.
+    final MozSearchSymbolInterner interner =
+        new MozSearchSymbolInterner(MozSearchSymbolInterner.DEFAULT_MAX_SYMBOLS);
+    final CompletionService<String> completion = new ExecutorCompletionService<String>(executor);
+    for (Path file : files) {
+      completion.submit(
+          () ->
+              (mIndexer.indexFile(registry, null, interner, file) ? INDEXED : FAILED)
+                  + " "
+                  + file);
+    }
+    int failed = 0;
+    try {
+      for (int i = 0; i < files.size(); i++) {
+        final String result = completion.take().get();
+        if (result.startsWith(FAILED)) {
+          failed++;
+        }
+        writer.println(result);
+        writer.flush();
+      }
+    } catch (InterruptedException | ExecutionException exception) {
+      throw new IOException(exception);
+    } finally {
+      // Drop resolution caches of this job's syntax trees, so that they
+      // don't pile up in the server.
+      JavaParserFacade.clearInstances();
+    }
+    writer.println(DONE + " " + (files.size() - failed) + " " + failed);
+    writer.flush();
+  }
+
+  private static void addFiles(
+      final Path directory, final MozSearchPathFilter filter, final List<Path> files)
+      throws IOException {
+    Files.walkFileTree(
+        directory,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (filter.isIgnored(dir)) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (!attrs.isDirectory()
+                && file.toString().endsWith(".java")
+                && !filter.isIgnored(file)) {
+              files.add(file);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exception) {
+            System.err.println(exception);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      mSocket.close();
+    } finally {
+      Files.deleteIfExists(mServerFile);
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package org.mozilla.mozsearch;
 
+import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.NodeList;
 import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
@@ -10,6 +11,7 @@ import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.body.Parameter;
 import com.github.javaparser.ast.body.VariableDeclarator;
 import com.github.javaparser.ast.expr.CastExpr;
+import com.github.javaparser.ast.expr.Expression;
 import com.github.javaparser.ast.expr.FieldAccessExpr;
 import com.github.javaparser.ast.expr.MethodCallExpr;
 import com.github.javaparser.ast.expr.NameExpr;
@@ -20,44 +22,67 @@ import com.github.javaparser.ast.type.ClassOrInterfaceType;
 import com.github.javaparser.ast.type.ReferenceType;
 import com.github.javaparser.ast.type.Type;
 import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
-import com.github.javaparser.resolution.declarations.ResolvedConstructorDeclaration;
+import com.github.javaparser.resolution.UnsolvedSymbolException;
 import com.github.javaparser.resolution.declarations.ResolvedEnumDeclaration;
-import com.github.javaparser.resolution.declarations.ResolvedFieldDeclaration;
 import com.github.javaparser.resolution.declarations.ResolvedMethodDeclaration;
 import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
 import com.github.javaparser.resolution.declarations.ResolvedTypeDeclaration;
 import com.github.javaparser.resolution.declarations.ResolvedValueDeclaration;
 import com.github.javaparser.resolution.types.ResolvedType;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
-import org.json.JSONObject;
+import java.util.Set;
+import java.util.function.Supplier;
 
 public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
-  private Path mOutputPath;
+  private MozSearchAnalysisWriter mWriter;
   private long mStart;
-  private long mTimeout = 5 * 1000 * 60; // 5 min
+  private long mTimeout = -1;
+  private final ArrayList<String> mDefinedTypes = new ArrayList<String>();
+  // Symbols of the output, only when requested by collectSymbols().
+  private HashSet<String> mSymbols;
+  private final MozSearchAnalysisRecord mRecord;
+  // Contexts of enclosing methods and constructors. The top is the innermost.
+  private final ArrayDeque<String> mContexts = new ArrayDeque<String>();
+  private MozSearchFileMetrics mMetrics = new MozSearchFileMetrics("");
+  private MozSearchResolutionBudget mBudget = new MozSearchResolutionBudget();
+  private long mResolveStart;
+  private MozSearchMemberCache mMemberCache;
+
+  public MozSearchJSONOutputVisitor(final MozSearchAnalysisWriter writer) {
+    this(writer, new MozSearchAnalysisRecord());
+  }
 
-  public MozSearchJSONOutputVisitor(final Path output) {
-    mOutputPath = output;
-    if (Files.exists(output)) {
-      try {
-        Files.delete(output);
-      } catch (IOException exception) {
-        System.err.println(exception);
-      }
-    }
+  /*
+   * @Param interner Symbols shared with the visitors of other files of the
+   *                 run.
+   */
+  public MozSearchJSONOutputVisitor(
+      final MozSearchAnalysisWriter writer, final MozSearchSymbolInterner interner) {
+    this(writer, new MozSearchAnalysisRecord(interner));
+  }
+
+  private MozSearchJSONOutputVisitor(
+      final MozSearchAnalysisWriter writer, final MozSearchAnalysisRecord record) {
+    mWriter = writer;
+    mRecord = record;
     mStart = System.currentTimeMillis();
   }
 
   // Resolving type spends more time, so when execute time is too long,
   // we don't resolve type for fields. But declare will be resolved if possible.
   private boolean isLongTask() {
-    return (System.currentTimeMillis() - mStart) > mTimeout;
+    if (mTimeout > 0 && (System.currentTimeMillis() - mStart) > mTimeout) {
+      mMetrics.setLongTask();
+      return true;
+    }
+    return false;
   }
 
   /*
@@ -67,26 +92,205 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
    *                Since it may spends more time to resolve object type, if
    *                elapsed time of visitor's parser is more than timeout
    *                value, we don't resolve type except to declare.
-   *                Default value is 5 min.
+   *                By default, there is no timeout, and resolution is
+   *                limited by the budget instead, which doesn't depend on
+   *                the speed of the machine.
    */
   public void setTimeout(long timeout) {
     mTimeout = timeout;
   }
 
-  private static String getScope(final String fullName, final SimpleName name) {
-    return fullName.substring(0, fullName.length() - name.toString().length());
+  /*
+   * Set the resolution budget of the file. It must be the budget which is
+   * counted by the type solvers of the parsed file.
+   */
+  public void setBudget(final MozSearchResolutionBudget budget) {
+    mBudget = budget;
   }
 
-  private String getScopeOfParameterType(final Parameter parameter) {
-    // Resolving type is expensive.
-    if (isLongTask()) {
-      return "";
+  /*
+   * Resolve method calls, object creations and field accesses through this
+   * cache, which may be shared with other visitors.
+   */
+  public void setMemberCache(final MozSearchMemberCache cache) {
+    mMemberCache = cache;
+  }
+
+  /*
+   * Set metrics of the visited file, to count resolutions and the timeout.
+   */
+  public void setMetrics(final MozSearchFileMetrics metrics) {
+    mMetrics = metrics;
+  }
+
+  /*
+   * @Return Types declared in the visited file, in "sym" form.
+   */
+  public List<String> getDefinedTypes() {
+    return mDefinedTypes;
+  }
+
+  /*
+   * Record symbols of the output, so they can be read by getSymbols().
+   */
+  public void collectSymbols() {
+    mSymbols = new HashSet<String>();
+  }
+
+  /*
+   * @Return All symbols that the output refers to, or an empty set if
+   *         collectSymbols() wasn't called.
+   */
+  public Set<String> getSymbols() {
+    if (mSymbols == null) {
+      return Collections.<String>emptySet();
     }
+    return mSymbols;
+  }
 
+  /*
+   * Start resolving a node, if the budget and the timeout allow it. Every
+   * resolution is counted in the metrics by the type of the node.
+   *
+   * @Param tier Priority of the node in MozSearchResolutionBudget.
+   * @Return true if the node should be resolved. Then endResolve() must be
+   *         called after the resolution.
+   */
+  private boolean startResolve(final Node node, final int tier) {
+    if ((tier != MozSearchResolutionBudget.DEFINITION && isLongTask()) || !mBudget.begin(tier)) {
+      mMetrics.addSkipped(node.getClass());
+      return false;
+    }
+    mResolveStart = System.nanoTime();
+    return true;
+  }
+
+  private void endResolve(final Node node, final boolean resolved) {
+    final boolean aborted = mBudget.isExceeded();
+    final long steps = mBudget.end();
+    mMetrics.addResolve(
+        node.getClass(), resolved, aborted, steps, System.nanoTime() - mResolveStart);
+  }
+
+  // Finish a failed resolution, and count the failure by the symbol which
+  // couldn't be resolved. Resolutions aborted by the budget aren't failures
+  // of a symbol.
+  private void endResolve(final Node node, final Exception exception) {
+    final boolean aborted = mBudget.isExceeded();
+    final long nanos = System.nanoTime() - mResolveStart;
+    endResolve(node, false);
+    if (aborted) {
+      return;
+    }
+    String name = null;
+    if (exception instanceof UnsolvedSymbolException) {
+      name = ((UnsolvedSymbolException) exception).getName();
+    }
+    mMetrics.addFailure(name != null ? name : exception.getClass().getSimpleName(), nanos);
+  }
+
+  // Resolve a member through the member cache if the access has a key. The
+  // key needs the types of the scope and the arguments, which can fail where
+  // resolve() doesn't, e.g. with a qualified type name like java.lang.Math
+  // as the scope. Then the member is resolved without the cache.
+  private String resolveMember(final Supplier<String> getKey, final Supplier<String> resolver) {
+    String key;
     try {
-      return getScopeOfType(parameter.getType(), parameter.resolve().getType());
-    } catch (Exception e) {
-      // not resolved
+      key = getKey.get();
+    } catch (MozSearchResolutionBudget.ExceededException exception) {
+      throw exception;
+    } catch (Exception exception) {
+      key = null;
+    }
+    if (key == null) {
+      return resolver.get();
+    }
+    final MozSearchMemberCache.Entry entry = mMemberCache.get(key);
+    if (entry != null) {
+      mBudget.charge(entry.getSteps());
+      return entry.getName();
+    }
+    final long steps = mBudget.getSteps();
+    final String name = resolver.get();
+    mMemberCache.put(key, name, mBudget.getSteps() - steps);
+    return name;
+  }
+
+  // Whether the scope of an access is probably a type, like Math in
+  // Math.max(). Its type can't be calculated as a value, so the access
+  // isn't cached.
+  private static boolean isTypeName(final Expression scope) {
+    return scope.isNameExpr()
+        && Character.isUpperCase(scope.asNameExpr().getNameAsString().charAt(0));
+  }
+
+  // Types of the arguments of a call, or null if a type depends on the
+  // called method. The resolution of the call needs all the other types, so
+  // an argument which fails here would fail it anyway.
+  private static List<ResolvedType> getArgumentTypes(final NodeList<Expression> arguments) {
+    final ArrayList<ResolvedType> types = new ArrayList<ResolvedType>();
+    for (Expression argument : arguments) {
+      if (argument.isLambdaExpr() || argument.isMethodReferenceExpr()) {
+        return null;
+      }
+      types.add(argument.calculateResolvedType());
+    }
+    return types;
+  }
+
+  private String getMemberKey(final MethodCallExpr n) {
+    if (mMemberCache == null
+        || !n.getScope().isPresent()
+        || isTypeName(n.getScope().get())
+        || n.getTypeArguments().isPresent()) {
+      return null;
+    }
+    final ResolvedType receiver = n.getScope().get().calculateResolvedType();
+    final List<ResolvedType> arguments = getArgumentTypes(n.getArguments());
+    if (arguments == null) {
+      return null;
+    }
+    return MozSearchMemberCache.getKey("call", receiver, n.getNameAsString(), arguments);
+  }
+
+  private String getMemberKey(final ObjectCreationExpr n) {
+    if (mMemberCache == null
+        || n.getScope().isPresent()
+        || n.getTypeArguments().isPresent()
+        || n.getAnonymousClassBody().isPresent()
+        || n.isUsingDiamondOperator()) {
+      return null;
+    }
+    final ResolvedType type = n.calculateResolvedType();
+    final List<ResolvedType> arguments = getArgumentTypes(n.getArguments());
+    if (arguments == null) {
+      return null;
+    }
+    return MozSearchMemberCache.getKey("new", type, n.getType().getNameAsString(), arguments);
+  }
+
+  private String getMemberKey(final FieldAccessExpr n) {
+    if (mMemberCache == null || isTypeName(n.getScope())) {
+      return null;
+    }
+    return MozSearchMemberCache.getKey(
+        "field", n.getScope().calculateResolvedType(), n.getNameAsString(), null);
+  }
+
+  private static String getScope(final String fullName, final SimpleName name) {
+    return fullName.substring(0, fullName.length() - name.toString().length());
+  }
+
+  private String getScopeOfParameterType(final Parameter parameter) {
+    if (startResolve(parameter, MozSearchResolutionBudget.DECLARATION)) {
+      try {
+        final String scope = getScopeOfType(parameter.getType(), parameter.resolve().getType());
+        endResolve(parameter, true);
+        return scope;
+      } catch (Exception e) {
+        endResolve(parameter, e);
+        // not resolved
+      }
     }
     return "";
   }
@@ -127,25 +331,13 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
     return type;
   }
 
-  private static String getContext(final Node n) {
-    try {
-      Optional<Node> parent = n.getParentNode();
-      while (parent.isPresent()) {
-        if (parent.get() instanceof MethodDeclaration) {
-          MethodDeclaration d = (MethodDeclaration) parent.get();
-          final ResolvedMethodDeclaration decl = d.resolve();
-          return decl.getQualifiedName();
-        } else if (parent.get() instanceof ConstructorDeclaration) {
-          final ConstructorDeclaration d = (ConstructorDeclaration) parent.get();
-          final ResolvedReferenceTypeDeclaration decl = d.resolve().declaringType();
-          return decl.getQualifiedName() + "." + d.getName();
-        }
-        parent = parent.get().getParentNode();
-      }
-    } catch (Exception e) {
-      // not resolved
+  // Returns qualified name of the innermost method or constructor. Each one
+  // is resolved once when visiting it, instead of for every expression.
+  private String getContext() {
+    if (mContexts.isEmpty()) {
+      return "";
     }
-    return "";
+    return mContexts.peek();
   }
 
   private void handleGenericsArguments(final Type type, final String context) {
@@ -160,14 +352,16 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
 
     for (Type t : args.get()) {
       String typeScope = "";
-      if (!isLongTask()) {
+      if (startResolve(t, MozSearchResolutionBudget.NAME)) {
         try {
           final ResolvedType resolvedType = t.resolve();
           typeScope = getScopeOfType(t, resolvedType);
           if (typeScope.length() > 0) {
             t = getRealType(t);
           }
+          endResolve(t, true);
         } catch (Exception e) {
+          endResolve(t, e);
         }
       }
       outputSource(t, typeScope);
@@ -177,29 +371,22 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
 
   // Emit objects functions
 
-  private void outputJSON(final JSONObject obj) {
+  private void outputJSON(final MozSearchAnalysisRecord record) {
+    if (mSymbols != null) {
+      mSymbols.add(record.getSymbol());
+    }
     try {
-      if (!Files.exists(mOutputPath.getParent())) {
-        Files.createDirectories(mOutputPath.getParent());
-      }
-      PrintWriter printWriter =
-          new PrintWriter(new BufferedWriter(new FileWriter(mOutputPath.toFile(), true)));
-      printWriter.println(obj);
-      printWriter.close();
+      mWriter.write(record);
     } catch (IOException exception) {
-      System.err.println(exception);
+      // Fail this file instead of committing partial output.
+      throw new UncheckedIOException(exception);
     }
   }
 
   private void outputSource(final ClassOrInterfaceDeclaration n, final String scope) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final Type n, final String scope) {
@@ -214,101 +401,58 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
 
   private void outputSource(final ClassOrInterfaceType n, final String scope) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final ConstructorDeclaration n, final String scope) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final MethodDeclaration n, final String scope) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final VariableDeclarator n, final String scope, boolean isVariable) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n, scope);
     if (isVariable) {
-      obj.put("no_crossref", 1);
+      mRecord.setNoCrossref();
     }
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final EnumDeclaration n, final String scope) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final EnumConstantDeclaration n, final String scope) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final ObjectCreationExpr n, final SimpleName name, final String scope) {
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final MethodCallExpr n, final String scope) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final FieldAccessExpr n, final String scope) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final Parameter n) {
@@ -317,46 +461,26 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
     outputSource(type, typeScope);
 
     final SimpleName name = n.getName();
-    final String fullName = name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, "");
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol("", name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final ReferenceType n, final SimpleName name, final String scope) {
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n);
+    outputJSON(mRecord);
   }
 
   private void outputSource(final NameExpr n, final String scope) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addSourceLine(name).addSource(n, name, scope);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addSourceLine(name).addSymbol(scope, name).addSource(n, scope);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(
       final ClassOrInterfaceDeclaration n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addDefinitionTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(final Type n, final String scope, final String context) {
@@ -372,114 +496,64 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
   private void outputTarget(
       final ClassOrInterfaceType n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addUseTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(
       final ConstructorDeclaration n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addDefinitionTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(final VariableDeclarator n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addDefinitionTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(final EnumDeclaration n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addDefinitionTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(
       final EnumConstantDeclaration n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addDefinitionTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(final MethodDeclaration n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addDefinitionTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(
       final ObjectCreationExpr n, final SimpleName name, final String scope, final String context) {
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addUseTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(final MethodCallExpr n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addUseTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(final FieldAccessExpr n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addUseTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(final NameExpr n, final String scope, final String context) {
     final SimpleName name = n.getName();
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addUseTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(final Parameter n, final String context) {
@@ -488,60 +562,83 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
     outputTarget(type, typeScope, context);
 
     final SimpleName name = n.getName();
-    final String fullName = name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, "", context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol("", name).addDefinitionTarget(context);
+    outputJSON(mRecord);
   }
 
   private void outputTarget(
       final ReferenceType n, final SimpleName name, final String scope, final String context) {
-    final String fullName = scope + name.getIdentifier();
-
-    MozSearchJSONObject obj = new MozSearchJSONObject();
-    obj.addTargetLine(name).addTarget(n, name, scope, context);
-    obj.addSymbol(fullName);
-
-    outputJSON(obj);
+    mRecord.reset().addTargetLine(name).addSymbol(scope, name).addUseTarget(context);
+    outputJSON(mRecord);
   }
 
   // Declarations
 
+  @Override
+  public void visit(CompilationUnit n, String a) {
+    // Count nodes to reserve the budget for declarations and calls.
+    final long[] counts = new long[2];
+    n.walk(
+        node -> {
+          if (node instanceof VariableDeclarator) {
+            counts[0]++;
+          } else if (node instanceof Parameter) {
+            // Type of parameter is resolved for both source and target.
+            counts[0] += 2;
+          } else if (node instanceof MethodCallExpr || node instanceof ObjectCreationExpr) {
+            counts[1]++;
+          }
+        });
+    mBudget.startFile(counts[0], counts[1]);
+
+    super.visit(n, a);
+  }
+
   @Override
   public void visit(ClassOrInterfaceDeclaration n, String a) {
     String scope = "";
     String context = "";
 
-    try {
-      final ResolvedReferenceTypeDeclaration decl = n.resolve();
-      scope = getScope(decl.getQualifiedName(), n.getName());
-      if (scope.length() > 0) {
-        context = scope.substring(0, scope.length() - 1);
+    if (startResolve(n, MozSearchResolutionBudget.DEFINITION)) {
+      try {
+        final ResolvedReferenceTypeDeclaration decl = n.resolve();
+        scope = getScope(decl.getQualifiedName(), n.getName());
+        if (scope.length() > 0) {
+          context = scope.substring(0, scope.length() - 1);
+        }
+        endResolve(n, true);
+      } catch (Exception e) {
+        endResolve(n, e);
+        // not resolved
       }
-    } catch (Exception e) {
-      // not resolved
     }
 
     outputSource(n, scope);
     outputTarget(n, scope, context);
+    mDefinedTypes.add((scope + n.getName().getIdentifier()).replace('.', '#'));
 
     for (ClassOrInterfaceType classType : n.getExtendedTypes()) {
       String typeScope = "";
-      try {
-        typeScope = getScopeOfType(classType, classType.resolve());
-      } catch (Exception e) {
+      if (startResolve(classType, MozSearchResolutionBudget.DEFINITION)) {
+        try {
+          typeScope = getScopeOfType(classType, classType.resolve());
+          endResolve(classType, true);
+        } catch (Exception e) {
+          endResolve(classType, e);
+        }
       }
       outputSource(classType, typeScope);
       outputTarget(classType, typeScope, context);
     }
     for (ClassOrInterfaceType classType : n.getImplementedTypes()) {
       String typeScope = "";
-      try {
-        typeScope = getScopeOfType(classType, classType.resolve());
-      } catch (Exception e) {
+      if (startResolve(classType, MozSearchResolutionBudget.DEFINITION)) {
+        try {
+          typeScope = getScopeOfType(classType, classType.resolve());
+          endResolve(classType, true);
+        } catch (Exception e) {
+          endResolve(classType, e);
+        }
       }
       outputSource(classType, typeScope);
       outputTarget(classType, typeScope, context);
@@ -556,7 +653,7 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
     boolean isVariable = false;
     ResolvedType resolvedType = null;
 
-    if (!isLongTask()) {
+    if (startResolve(n, MozSearchResolutionBudget.DECLARATION)) {
       try {
         final ResolvedValueDeclaration decl = n.resolve();
         isVariable = decl.isVariable();
@@ -565,10 +662,12 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
           scope = typeDecl.getQualifiedName() + ".";
           context = typeDecl.getQualifiedName();
         } else {
-          context = getContext(n);
+          context = getContext();
         }
         resolvedType = decl.getType();
+        endResolve(n, true);
       } catch (Exception e) {
+        endResolve(n, e);
         // not resolved
       }
     }
@@ -594,18 +693,23 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
     String scope = "";
     String context = "";
 
-    try {
-      final ResolvedEnumDeclaration decl = n.resolve();
-      scope = getScope(decl.getQualifiedName(), n.getName());
-      if (scope.length() > 0) {
-        context = scope.substring(0, scope.length() - 1);
+    if (startResolve(n, MozSearchResolutionBudget.DEFINITION)) {
+      try {
+        final ResolvedEnumDeclaration decl = n.resolve();
+        scope = getScope(decl.getQualifiedName(), n.getName());
+        if (scope.length() > 0) {
+          context = scope.substring(0, scope.length() - 1);
+        }
+        endResolve(n, true);
+      } catch (Exception e) {
+        endResolve(n, e);
+        // not resolved
       }
-    } catch (Exception e) {
-      // not resolved
     }
 
     outputSource(n, scope);
     outputTarget(n, scope, context);
+    mDefinedTypes.add((scope + n.getName().getIdentifier()).replace('.', '#'));
 
     if (scope.length() > 0) {
       context = scope + n.getName();
@@ -624,13 +728,20 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
     String scope = "";
     String context = "";
 
+    String constructorContext = "";
+
     // Even if this analyze is too long, we resolve this.
-    try {
-      final ResolvedReferenceTypeDeclaration decl = n.resolve().declaringType();
-      scope = decl.getQualifiedName() + ".";
-      context = decl.getQualifiedName();
-    } catch (Exception e) {
-      // not resolved
+    if (startResolve(n, MozSearchResolutionBudget.DEFINITION)) {
+      try {
+        final ResolvedReferenceTypeDeclaration decl = n.resolve().declaringType();
+        scope = decl.getQualifiedName() + ".";
+        context = decl.getQualifiedName();
+        constructorContext = decl.getQualifiedName() + "." + n.getName();
+        endResolve(n, true);
+      } catch (Exception e) {
+        endResolve(n, e);
+        // not resolved
+      }
     }
 
     outputSource(n, scope);
@@ -646,7 +757,12 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
       outputTarget(parameter, context);
     }
 
-    super.visit(n, a);
+    mContexts.push(constructorContext);
+    try {
+      super.visit(n, a);
+    } finally {
+      mContexts.pop();
+    }
   }
 
   @Override
@@ -654,17 +770,23 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
     String scope = "";
     String context = "";
     ResolvedType resolvedType = null;
+    String methodContext = "";
 
     // Even if this analyze is too long, we resolve this.
-    try {
-      final ResolvedMethodDeclaration decl = n.resolve();
-      scope = getScope(decl.getQualifiedName(), n.getName());
-      if (scope.length() > 0) {
-        context = scope.substring(0, scope.length() - 1);
+    if (startResolve(n, MozSearchResolutionBudget.DEFINITION)) {
+      try {
+        final ResolvedMethodDeclaration decl = n.resolve();
+        methodContext = decl.getQualifiedName();
+        scope = getScope(decl.getQualifiedName(), n.getName());
+        if (scope.length() > 0) {
+          context = scope.substring(0, scope.length() - 1);
+        }
+        resolvedType = decl.getReturnType();
+        endResolve(n, true);
+      } catch (Exception e) {
+        endResolve(n, e);
+        // not resolved
       }
-      resolvedType = decl.getReturnType();
-    } catch (Exception e) {
-      // not resolved
     }
 
     outputSource(n, scope);
@@ -684,10 +806,14 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
     // exceptions
     for (ReferenceType exception : n.getThrownExceptions()) {
       String typeScope = "";
-      try {
-        typeScope = getScopeOfType(exception, exception.resolve());
-      } catch (Exception e) {
-        // not resolved
+      if (startResolve(exception, MozSearchResolutionBudget.DEFINITION)) {
+        try {
+          typeScope = getScopeOfType(exception, exception.resolve());
+          endResolve(exception, true);
+        } catch (Exception e) {
+          endResolve(exception, e);
+          // not resolved
+        }
       }
       outputSource(exception, typeScope);
       outputTarget(exception, typeScope, context);
@@ -704,13 +830,18 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
 
     handleGenericsArguments(type, context);
 
-    super.visit(n, a);
+    mContexts.push(methodContext);
+    try {
+      super.visit(n, a);
+    } finally {
+      mContexts.pop();
+    }
   }
 
   @Override
   public void visit(CatchClause n, String a) {
     final Parameter parameter = n.getParameter();
-    final String context = getContext(n);
+    final String context = getContext();
 
     outputSource(parameter);
     outputTarget(parameter, context);
@@ -722,16 +853,19 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
   public void visit(MethodCallExpr n, String a) {
     String scope = "";
 
-    if (!isLongTask()) {
+    if (startResolve(n, MozSearchResolutionBudget.CALL)) {
       try {
-        final ResolvedMethodDeclaration decl = n.resolve();
-        scope = getScope(decl.getQualifiedName(), n.getName());
+        final String qualifiedName =
+            resolveMember(() -> getMemberKey(n), () -> n.resolve().getQualifiedName());
+        scope = getScope(qualifiedName, n.getName());
+        endResolve(n, true);
       } catch (Exception e) {
+        endResolve(n, e);
         // not resolved.
       }
     }
 
-    final String context = getContext(n);
+    final String context = getContext();
 
     outputSource(n, scope);
     outputTarget(n, scope, context);
@@ -743,19 +877,21 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
   public void visit(NameExpr n, String a) {
     String scope = "";
 
-    if (!isLongTask()) {
+    if (startResolve(n, MozSearchResolutionBudget.NAME)) {
       try {
         final ResolvedValueDeclaration decl = n.resolve();
         if (decl.isField()) {
           final ResolvedTypeDeclaration typeDecl = decl.asField().declaringType();
           scope = typeDecl.getQualifiedName() + ".";
         }
+        endResolve(n, true);
       } catch (Exception e) {
+        endResolve(n, e);
         // not resolved
       }
     }
 
-    final String context = getContext(n);
+    final String context = getContext();
 
     outputSource(n, scope);
     outputTarget(n, scope, context);
@@ -767,16 +903,19 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
   public void visit(ObjectCreationExpr n, String a) {
     String scope = "";
 
-    if (!isLongTask()) {
+    if (startResolve(n, MozSearchResolutionBudget.CALL)) {
       try {
-        final ResolvedConstructorDeclaration decl = n.resolve();
-        scope = getScope(decl.getQualifiedName(), n.getType().getName());
+        final String qualifiedName =
+            resolveMember(() -> getMemberKey(n), () -> n.resolve().getQualifiedName());
+        scope = getScope(qualifiedName, n.getType().getName());
+        endResolve(n, true);
       } catch (Exception e) {
+        endResolve(n, e);
         // not resolved
       }
     }
 
-    final String context = getContext(n);
+    final String context = getContext();
 
     outputSource(n, n.getType().getName(), scope);
     outputTarget(n, n.getType().getName(), scope, context);
@@ -790,17 +929,21 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
   public void visit(FieldAccessExpr n, String a) {
     String scope = "";
 
-    if (!isLongTask()) {
+    if (startResolve(n, MozSearchResolutionBudget.NAME)) {
       try {
-        final ResolvedFieldDeclaration decl = n.resolve().asField();
-        final ResolvedTypeDeclaration typeDecl = decl.declaringType();
-        scope = typeDecl.getQualifiedName() + ".";
+        final String typeName =
+            resolveMember(
+                () -> getMemberKey(n),
+                () -> n.resolve().asField().declaringType().getQualifiedName());
+        scope = typeName + ".";
+        endResolve(n, true);
       } catch (Exception e) {
+        endResolve(n, e);
         // not resolved
       }
     }
 
-    final String context = getContext(n);
+    final String context = getContext();
 
     outputSource(n, scope);
     outputTarget(n, scope, context);
@@ -814,18 +957,20 @@ public class MozSearchJSONOutputVisitor extends VoidVisitorAdapter<String> {
     String scope = "";
 
     // Resolving type is expensive
-    if (!isLongTask()) {
+    if (startResolve(type, MozSearchResolutionBudget.NAME)) {
       try {
         scope = getScopeOfType(type, type.resolve());
         if (scope.length() > 0) {
           type = getRealType(type);
         }
+        endResolve(type, true);
       } catch (Exception e) {
+        endResolve(type, e);
         // not resolved
       }
     }
 
-    final String context = getContext(n);
+    final String context = getContext();
 
     outputSource(type, scope);
     outputTarget(type, scope, context);
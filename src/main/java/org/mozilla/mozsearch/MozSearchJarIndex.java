@@ -0,0 +1,178 @@
+package org.mozilla.mozsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/*
+ * Read-only view of a class path jar which is shared by all workers.
+ *
+ * The jar is opened once through the zip file system. The class name index
+ * is built from the entry names on first lookup, and class files are read
+ * only when a class is actually resolved. Recently read class files are kept
+ * in an LRU cache bounded by total size.
+ */
+public class MozSearchJarIndex implements Closeable {
+  private static final long DEFAULT_CACHE_BYTES = 32 * 1024 * 1024;
+
+  private final Path mJarPath;
+  private final FileSystem mFileSystem;
+  private final long mCacheLimit;
+  // canonical name (a.b.C.D) -> binary name (a.b.C$D)
+  private Map<String, String> mClasses;
+  private final LinkedHashMap<String, byte[]> mCache =
+      new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+  private long mCacheBytes = 0;
+  private MozSearchSymbolCache mSymbolCache;
+
+  public MozSearchJarIndex(final Path jarPath) throws IOException {
+    this(jarPath, DEFAULT_CACHE_BYTES);
+  }
+
+  public MozSearchJarIndex(final Path jarPath, final long cacheLimit) throws IOException {
+    mJarPath = jarPath.toAbsolutePath();
+    mFileSystem = FileSystems.newFileSystem(mJarPath, (ClassLoader) null);
+    mCacheLimit = cacheLimit;
+  }
+
+  public Path getJarPath() {
+    return mJarPath;
+  }
+
+  /*
+   * Set persistent cache of class names. With this, lookups answered by the
+   * cache don't need the class name index of this jar.
+   */
+  public void setSymbolCache(final MozSearchSymbolCache cache) {
+    mSymbolCache = cache;
+  }
+
+  private synchronized Map<String, String> getClasses() throws IOException {
+    if (mClasses != null) {
+      return mClasses;
+    }
+    final HashMap<String, String> classes = new HashMap<String, String>();
+    for (Path root : mFileSystem.getRootDirectories()) {
+      try (Stream<Path> entries = Files.walk(root)) {
+        Iterator<Path> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+          final String entry = root.relativize(iterator.next()).toString();
+          if (!entry.endsWith(".class")) {
+            continue;
+          }
+          final String binaryName =
+              entry.substring(0, entry.length() - ".class".length()).replace('/', '.');
+          if (isAnonymousClass(binaryName)) {
+            continue;
+          }
+          classes.put(binaryName.replace('$', '.'), binaryName);
+        }
+      }
+    }
+    mClasses = classes;
+    return mClasses;
+  }
+
+  private static boolean isAnonymousClass(final String binaryName) {
+    int index = binaryName.indexOf('$');
+    while (index >= 0 && index + 1 < binaryName.length()) {
+      if (Character.isDigit(binaryName.charAt(index + 1))) {
+        return true;
+      }
+      index = binaryName.indexOf('$', index + 1);
+    }
+    return false;
+  }
+
+  /*
+   * Returns binary name of the class (e.g. "a.b.C$D" for "a.b.C.D"), or null
+   * if this jar doesn't have it.
+   */
+  public String getBinaryName(final String canonicalName) {
+    if (mSymbolCache != null) {
+      final String cached = mSymbolCache.get(canonicalName);
+      if (cached != null) {
+        return cached.equals(MozSearchSymbolCache.ABSENT) ? null : cached;
+      }
+    }
+    try {
+      final String binaryName = getClasses().get(canonicalName);
+      if (mSymbolCache != null) {
+        mSymbolCache.put(
+            canonicalName, binaryName == null ? MozSearchSymbolCache.ABSENT : binaryName);
+      }
+      return binaryName;
+    } catch (IOException exception) {
+      System.err.println(exception);
+      return null;
+    }
+  }
+
+  private Path getEntry(final String binaryName) {
+    return mFileSystem.getPath(binaryName.replace('.', '/') + ".class");
+  }
+
+  public URL getURL(final String binaryName) {
+    final Path entry = getEntry(binaryName);
+    if (!Files.exists(entry)) {
+      return null;
+    }
+    try {
+      return entry.toUri().toURL();
+    } catch (MalformedURLException exception) {
+      return null;
+    }
+  }
+
+  /*
+   * Returns the class file of the class, or null if this jar doesn't have
+   * it.
+   */
+  public byte[] getClassFile(final String binaryName) throws IOException {
+    synchronized (this) {
+      final byte[] bytes = mCache.get(binaryName);
+      if (bytes != null) {
+        return bytes;
+      }
+    }
+
+    final Path entry = getEntry(binaryName);
+    if (!Files.exists(entry)) {
+      return null;
+    }
+    final byte[] bytes = Files.readAllBytes(entry);
+
+    synchronized (this) {
+      if (mCache.put(binaryName, bytes) == null) {
+        mCacheBytes += bytes.length;
+      }
+      final Iterator<byte[]> iterator = mCache.values().iterator();
+      while (mCacheBytes > mCacheLimit && iterator.hasNext()) {
+        mCacheBytes -= iterator.next().length;
+        iterator.remove();
+      }
+    }
+    return bytes;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (mSymbolCache != null) {
+        mSymbolCache.save();
+      }
+    } finally {
+      mFileSystem.close();
+    }
+  }
+}
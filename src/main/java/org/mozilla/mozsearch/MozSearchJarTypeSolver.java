@@ -0,0 +1,141 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
+import com.github.javaparser.symbolsolver.javassistmodel.JavassistFactory;
+import com.github.javaparser.symbolsolver.model.resolution.SymbolReference;
+import com.github.javaparser.symbolsolver.model.resolution.TypeSolver;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+/*
+ * Type solver for class path jars, replacing JarTypeSolver.
+ *
+ * JarTypeSolver reads and indexes the whole jar for each instance and keeps
+ * every loaded class forever. This reads classes on demand from jars shared
+ * through MozSearchJarIndex, and keeps at most a fixed number of resolved
+ * classes per solver.
+ *
+ * This isn't thread safe. Each worker has its own instance.
+ */
+public class MozSearchJarTypeSolver implements TypeSolver {
+  private static final int DEFAULT_CACHE_SIZE = 4096;
+
+  private final List<MozSearchJarIndex> mJars;
+  private final ClassPool mClassPool = new ClassPool(false);
+  private final LinkedHashMap<String, CachedClass> mCache;
+  private TypeSolver mParent;
+
+  private static class CachedClass {
+    final CtClass mClass;
+    final ResolvedReferenceTypeDeclaration mDeclaration;
+
+    CachedClass(final CtClass ctClass, final ResolvedReferenceTypeDeclaration declaration) {
+      mClass = ctClass;
+      mDeclaration = declaration;
+    }
+  }
+
+  public MozSearchJarTypeSolver(final List<MozSearchJarIndex> jars) {
+    this(jars, DEFAULT_CACHE_SIZE);
+  }
+
+  public MozSearchJarTypeSolver(final List<MozSearchJarIndex> jars, final int cacheSize) {
+    mJars = jars;
+    mCache =
+        new LinkedHashMap<String, CachedClass>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedClass> eldest) {
+            if (size() <= cacheSize) {
+              return false;
+            }
+            // Drop the class from the pool too, or it is kept forever.
+            eldest.getValue().mClass.detach();
+            return true;
+          }
+        };
+    for (MozSearchJarIndex jar : jars) {
+      mClassPool.appendClassPath(new JarClassPath(jar));
+    }
+    mClassPool.appendSystemPath();
+  }
+
+  @Override
+  public TypeSolver getParent() {
+    return mParent;
+  }
+
+  @Override
+  public void setParent(TypeSolver parent) {
+    if (mParent != null) {
+      throw new IllegalStateException("This TypeSolver already has a parent.");
+    }
+    mParent = parent;
+  }
+
+  @Override
+  public SymbolReference<ResolvedReferenceTypeDeclaration> tryToSolveType(String name) {
+    final CachedClass cached = mCache.get(name);
+    if (cached != null) {
+      return SymbolReference.solved(cached.mDeclaration);
+    }
+
+    for (MozSearchJarIndex jar : mJars) {
+      final String binaryName = jar.getBinaryName(name);
+      if (binaryName == null) {
+        continue;
+      }
+      try {
+        final CtClass ctClass = mClassPool.get(binaryName);
+        final ResolvedReferenceTypeDeclaration declaration =
+            JavassistFactory.toTypeDeclaration(ctClass, getRoot());
+        mCache.put(name, new CachedClass(ctClass, declaration));
+        return SymbolReference.solved(declaration);
+      } catch (NotFoundException exception) {
+        // Listed in the index, but the class file cannot be read.
+      }
+    }
+    return SymbolReference.unsolved(ResolvedReferenceTypeDeclaration.class);
+  }
+
+  // Feeds javassist from the shared jar, so classes referred from resolved
+  // classes (nested classes, super classes) are read on demand as well.
+  private static class JarClassPath implements ClassPath {
+    private final MozSearchJarIndex mJar;
+
+    JarClassPath(final MozSearchJarIndex jar) {
+      mJar = jar;
+    }
+
+    @Override
+    public InputStream openClassfile(String classname) throws NotFoundException {
+      try {
+        final byte[] bytes = mJar.getClassFile(classname);
+        if (bytes == null) {
+          return null;
+        }
+        return new ByteArrayInputStream(bytes);
+      } catch (IOException exception) {
+        throw new NotFoundException(classname);
+      }
+    }
+
+    @Override
+    public URL find(String classname) {
+      return mJar.getURL(classname);
+    }
+
+    @Override
+    public String toString() {
+      return mJar.getJarPath().toString();
+    }
+  }
+}
@@ -1,26 +1,87 @@
 package org.mozilla.mozsearch;
 
-import com.github.javaparser.ParseProblemException;
-import com.github.javaparser.StaticJavaParser;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.symbolsolver.JavaSymbolSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.JarTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 public class MozSearchJavaIndexer {
+  private static final int QUEUE_SIZE_PER_WORKER = 64;
+  private static final int WRITE_QUEUE_SIZE_PER_WRITER = 4;
+  private static final int WINDOW_SIZE_PER_WORKER = 64;
+
+  // A file to index, with its predicted cost, and what the stages of the
+  // pipeline hand over to the next stage.
+  private static class IndexJob {
+    final Path mFile;
+    final long mSize;
+    final long mCost;
+    MozSearchSourceCache.Source mSource;
+    MozSearchFileMetrics mMetrics;
+    MozSearchAnalysisWriter mWriter;
+    MozSearchSymbolIndexBuilder.FileSymbols mSymbols;
+    // The file as it was indexed, for the manifest.
+    long mSourceSize;
+    long mModifiedTime;
+    String mHash;
+    List<String> mDefinedTypes;
+    Set<String> mDependencies;
+
+    IndexJob(final Path file, final long size, final long cost) {
+      mFile = file;
+      mSize = size;
+      mCost = cost;
+    }
+  }
+
+  // Most expensive files first, then by path.
+  private static final Comparator<IndexJob> COST_ORDER =
+      new Comparator<IndexJob>() {
+        @Override
+        public int compare(final IndexJob a, final IndexJob b) {
+          final int order = Long.compare(b.mCost, a.mCost);
+          return order != 0 ? order : a.mFile.compareTo(b.mFile);
+        }
+      };
+
   private Path mSourceDir;
   private Path mOutputDir;
   private int mTimeout = -1;
   private int mThreadPoolCount = 4;
+  private int mReadThreadCount = 1;
+  private int mWriteThreadCount = 2;
+  private List<Path> mClasspath = new ArrayList<Path>();
+  private List<String> mAndroidApis = new ArrayList<String>();
+  private boolean mIncremental = false;
+  private Path mCacheDir;
+  private Path mReportPath;
+  private List<String> mIgnoreGlobs = new ArrayList<String>();
+  private boolean mIgnoreGenerated = false;
+  private MozSearchShard mShard;
+  private boolean mCompress = false;
+  private boolean mBinary = false;
+  private long mFileSteps = MozSearchResolutionBudget.DEFAULT_FILE_STEPS;
+  private long mCallSteps = MozSearchResolutionBudget.DEFAULT_CALL_STEPS;
+  private long mSourceCacheBytes = MozSearchSourceCache.DEFAULT_MAX_BYTES;
+  private MozSearchRunReport mReport;
+  private Path mSymbolIndexPath;
+  private MozSearchSymbolIndexBuilder mSymbolIndex;
+  // Symbols of the current run, shared by its workers.
+  private MozSearchSymbolInterner mInterner;
+  private MozSearchFileTimings mTimings;
+  private MozSearchPipelineStage mReadStage;
+  private MozSearchPipelineStage mIndexStage;
+  private MozSearchPipelineStage mWriteStage;
 
   public MozSearchJavaIndexer(final Path sourceDir, final Path outputDir) {
     mSourceDir = sourceDir.toAbsolutePath();
@@ -31,138 +92,606 @@ public class MozSearchJavaIndexer {
     mTimeout = timeout;
   }
 
-  public void outputIndexes() {
-    try {
-      indexAllChildren(mSourceDir, mSourceDir, mOutputDir);
-    } catch (IOException exception) {
-      System.err.println(exception);
-    }
+  /*
+   * Set the number of worker threads.
+   *
+   * @Param count The number of files that are parsed and resolved at the
+   *              same time. Each worker has its own parser and type
+   *              solvers, so output doesn't depend on this value.
+   */
+  public void setThreadPoolCount(int count) {
+    mThreadPoolCount = count;
   }
 
-  private void indexAllChildren(final Path currentDir, final Path srcDir, final Path outputDir)
-      throws IOException {
-    if (currentDir.toFile().getName().equals(".git")
-        || currentDir.toFile().getName().equals(".hg")) {
-      return;
+  /*
+   * @Param count The number of files read ahead of the workers at the same
+   *              time.
+   */
+  public void setReadThreadCount(int count) {
+    mReadThreadCount = count;
+  }
+
+  /*
+   * @Param count The number of analysis files written at the same time.
+   */
+  public void setWriteThreadCount(int count) {
+    mWriteThreadCount = count;
+  }
+
+  int getThreadPoolCount() {
+    return mThreadPoolCount;
+  }
+
+  /*
+   * Set additional jar files to resolve symbols.
+   */
+  public void setClasspath(final List<Path> jars) {
+    mClasspath = jars;
+  }
+
+  /*
+   * Set Android API levels to look for android.jar in ANDROID_SDK_ROOT.
+   *
+   * @Param apis API levels such as "31", in order of preference. The first
+   *             installed one is used. If empty, android-31 to android-28
+   *             are tried.
+   */
+  public void setAndroidApis(final List<String> apis) {
+    mAndroidApis = apis;
+  }
+
+  /*
+   * Enable incremental indexing.
+   *
+   * If enabled, the indexer keeps a manifest in the output directory, and
+   * only files that changed (or depend on types that changed) since the
+   * previous run are indexed again. Outputs of deleted files are removed.
+   */
+  public void setIncremental(boolean incremental) {
+    mIncremental = incremental;
+  }
+
+  /*
+   * Set directory to keep lookup results of the JDK and jar files across
+   * runs. Caches are invalidated when the JDK or a jar is changed. The time
+   * taken by each file is kept there too, to schedule the slowest files
+   * first on the next run.
+   */
+  public void setCacheDir(final Path cacheDir) {
+    mCacheDir = cacheDir.toAbsolutePath();
+  }
+
+  /*
+   * Set the budget of type resolution.
+   *
+   * Resolution work is counted in steps of type lookups, so the output
+   * doesn't depend on the speed or the load of the machine. A resolve() call
+   * which uses more than callSteps is aborted and the node is output
+   * unresolved. When the steps of a file exceed fileSteps, names, calls and
+   * then declarations aren't resolved anymore, in this order.
+   *
+   * @Param fileSteps Steps of a file, or 0 for no limit.
+   * @Param callSteps Steps of a resolve() call, or 0 for no limit.
+   */
+  public void setResolutionBudget(final long fileSteps, final long callSteps) {
+    mFileSteps = fileSteps;
+    mCallSteps = callSteps;
+  }
+
+  /*
+   * @Param bytes Total size of the source files whose text is kept in
+   *              memory for parsing and type lookups of all workers.
+   */
+  public void setSourceCacheSize(final long bytes) {
+    mSourceCacheBytes = bytes;
+  }
+
+  /*
+   * Write a report of the run to this path.
+   *
+   * The report has timings and resolution counts of the run, a histogram of
+   * time per file, and the slowest files with their own metrics.
+   */
+  public void setReportPath(final Path reportPath) {
+    mReportPath = reportPath.toAbsolutePath();
+  }
+
+  /*
+   * Write an index of the definitions and uses of every symbol to this
+   * path, see MozSearchSymbolIndex. The index only has the files indexed in
+   * the run.
+   */
+  public void setSymbolIndexPath(final Path symbolIndexPath) {
+    mSymbolIndexPath = symbolIndexPath.toAbsolutePath();
+  }
+
+  /*
+   * Set globs of files and directories not to index, relative to the
+   * source directory (e.g. "third_party/*"). See MozSearchPathFilter.
+   */
+  public void setIgnoreGlobs(final List<String> globs) {
+    mIgnoreGlobs = globs;
+  }
+
+  /*
+   * Don't index generated sources in directories such as build/generated.
+   * They can still be used to resolve symbols.
+   */
+  public void setIgnoreGenerated(boolean ignoreGenerated) {
+    mIgnoreGenerated = ignoreGenerated;
+  }
+
+  /*
+   * Gzip analysis files as they are written. Compressed files have the
+   * ".gz" suffix, see MozSearchAnalysisReader.
+   */
+  public void setCompress(boolean compress) {
+    mCompress = compress;
+  }
+
+  /*
+   * Write analysis files in the binary form of MozSearchBinaryFormat, with
+   * the ".bin" suffix.
+   */
+  public void setBinary(boolean binary) {
+    mBinary = binary;
+  }
+
+  /*
+   * Index only the files of a shard of the tree. The list of indexed files
+   * is written to the output directory for MozSearchShardMerger.
+   */
+  public void setShard(final MozSearchShard shard) {
+    mShard = shard;
+  }
+
+  private List<String> getIgnoreGlobs() {
+    final ArrayList<String> globs = new ArrayList<String>(mIgnoreGlobs);
+    if (mIgnoreGenerated) {
+      globs.addAll(MozSearchPathFilter.GENERATED_SOURCE_GLOBS);
     }
-    ArrayList<Path> javaFiles = new ArrayList<Path>();
-    List<Path> files = Files.list(currentDir).collect(Collectors.toList());
-    for (Path file : files) {
-      if (Files.isDirectory(file) && !Files.isSymbolicLink(file)) {
-        indexAllChildren(file, srcDir, outputDir);
-      } else if (file.toString().endsWith(".java")) {
-        javaFiles.add(file);
+    return globs;
+  }
+
+  private Path getOutputPath(final Path file) {
+    return getOutputPath(file, mCompress, mBinary);
+  }
+
+  private Path getOutputPath(final Path file, final boolean compress, final boolean binary) {
+    return Paths.get(
+        mOutputDir.toString(),
+        file.toString().substring(mSourceDir.toString().length() + 1)
+            + MozSearchAnalysisWriter.getSuffix(compress, binary));
+  }
+
+  private void removeDeletedOutputs(final MozSearchIndexManifest manifest) {
+    for (String path : manifest.getDeletedFiles()) {
+      try {
+        removeOutput(mSourceDir.resolve(path));
+      } catch (IOException exception) {
+        System.err.println(exception);
       }
     }
-    makeIndexes(javaFiles, srcDir, outputDir);
   }
 
-  private Path getRootPath(final Path file, final String packageName) {
-    String path = packageName;
-    Path root = file.getParent();
-    String leafName = root.getFileName().toString();
-    root = root.getParent();
+  /*
+   * Index the tree in a pipeline of three stages, each with its own threads
+   * and bounded queue (see MozSearchPipelineStage):
+   *
+   * - read: reads the text of files into the source cache, so that workers
+   *   don't wait for the disk.
+   * - index: parses files and resolves their symbols, encoding the records
+   *   in memory. A file is parsed and visited on the same worker, since the
+   *   parsed file is bound to the type solvers of the worker.
+   * - write: writes the records to the output directory, and updates the
+   *   symbol index and the manifest.
+   *
+   * @Return Whether all files were processed. Files which fail to parse or
+   *         resolve have no output and are reported, but don't fail the
+   *         run. The run fails on I/O errors of the run itself, and when a
+   *         task of a stage throws.
+   */
+  public boolean outputIndexes() {
+    mReadStage =
+        new MozSearchPipelineStage(
+            "read", mReadThreadCount, mReadThreadCount * QUEUE_SIZE_PER_WORKER);
+    mIndexStage =
+        new MozSearchPipelineStage(
+            "index", mThreadPoolCount, mThreadPoolCount * QUEUE_SIZE_PER_WORKER);
+    // Each file waiting to be written keeps all its records in memory, so
+    // the write queue is short.
+    mWriteStage =
+        new MozSearchPipelineStage(
+            "write", mWriteThreadCount, mWriteThreadCount * WRITE_QUEUE_SIZE_PER_WRITER);
+    final List<MozSearchPipelineStage> stages = Arrays.asList(mReadStage, mIndexStage, mWriteStage);
+    final MozSearchPathFilter filter = createFilter();
+    if (mReportPath != null) {
+      mReport = new MozSearchRunReport();
+    }
+    if (mSymbolIndexPath != null) {
+      mSymbolIndex = new MozSearchSymbolIndexBuilder(mSymbolIndexPath);
+    }
+    mInterner = new MozSearchSymbolInterner(MozSearchSymbolInterner.DEFAULT_MAX_SYMBOLS);
+    if (mCacheDir != null) {
+      mTimings = new MozSearchFileTimings(mCacheDir, mSourceDir, mShard);
+      mTimings.load();
+    }
+    try (MozSearchTypeSolverRegistry registry = openRegistry()) {
+      if (mShard != null) {
+        mShard.setRoots(mSourceDir, registry.getPackageRoots());
+      }
 
-    // Find root directory of this Java source package.
-    // If directory structure isn't Java package structure, we don't return
-    // root directory.
-    while (path.contains(".")) {
-      if (!leafName.equals(path.substring(path.lastIndexOf(".") + 1))) {
-        return null;
+      MozSearchIndexManifest manifest = null;
+      if (mIncremental) {
+        manifest = new MozSearchIndexManifest(mSourceDir, mOutputDir, filter);
+        manifest.load();
+        manifest.scan(registry::readSource);
+        removeDeletedOutputs(manifest);
       }
 
-      leafName = root.getFileName().toString();
-      root = root.getParent();
-      path = path.substring(0, path.lastIndexOf("."));
+      try {
+        indexTree(filter, manifest, registry);
+      } finally {
+        // Stages are finished in order, since each one queues tasks of the
+        // next one.
+        mReadStage.finish();
+        mIndexStage.finish();
+        mWriteStage.finish();
+      }
+      if (manifest != null) {
+        manifest.save();
+      }
+      if (mShard != null) {
+        mShard.save(mOutputDir);
+      }
+      if (mSymbolIndex != null) {
+        mSymbolIndex.write();
+      }
+      if (mTimings != null) {
+        mTimings.save();
+      }
+      if (mReport != null) {
+        mReport.setUnresolvedTypes(registry.getUnresolvedTypes());
+        mReport.setMemberCache(registry.getMemberCache());
+        mReport.setStages(stages);
+        mReport.write(mReportPath);
+      }
+    } catch (IOException exception) {
+      System.err.println(exception);
+      return false;
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      return false;
     }
-
-    if (!root.startsWith(mSourceDir)) {
-      return null;
+    for (MozSearchPipelineStage stage : stages) {
+      if (stage.getFailedTaskCount() > 0) {
+        System.err.println(
+            stage.getFailedTaskCount() + " tasks of the " + stage.getName() + " stage failed");
+        return false;
+      }
     }
-    return root;
+    return true;
+  }
+
+  /*
+   * Create the filter of ignored files and directories of the tree.
+   */
+  MozSearchPathFilter createFilter() {
+    return new MozSearchPathFilter(mSourceDir, getIgnoreGlobs());
   }
 
-  private void makeIndexes(final List<Path> files, final Path srcDir, final Path outputDir) {
-    if (files.isEmpty()) {
-      return;
+  /*
+   * Create the type solver registry with the jars and the source roots of
+   * the tree.
+   */
+  MozSearchTypeSolverRegistry openRegistry() throws IOException {
+    final MozSearchTypeSolverRegistry registry = new MozSearchTypeSolverRegistry(mSourceDir);
+    try {
+      if (mCacheDir != null) {
+        registry.setCacheDir(mCacheDir);
+      }
+      registry.setResolutionBudget(mFileSteps, mCallSteps);
+      registry.setSourceCacheSize(mSourceCacheBytes);
+      registry.setWorkerCount(mThreadPoolCount);
+      final Path androidJar = MozSearchTypeSolverRegistry.findAndroidJar(mAndroidApis);
+      if (androidJar != null) {
+        registry.addJar(androidJar);
+      }
+      for (Path jar : mClasspath) {
+        registry.addJar(jar);
+      }
+      registry.discover();
+    } catch (IOException exception) {
+      registry.close();
+      throw exception;
     }
+    return registry;
+  }
 
-    final CombinedTypeSolver solver = new CombinedTypeSolver();
-    solver.add(new ReflectionTypeSolver());
+  Path getSourceDir() {
+    return mSourceDir;
+  }
 
-    // This is cached dir list not to add duplicated entry
-    final ArrayList<Path> dirs = new ArrayList<Path>();
+  /*
+   * Merge outputs of all shards into the output directory, and check that
+   * they cover the source tree without overlaps. Ignore options must be the
+   * same as the shards.
+   *
+   * @Param shardDirs Output directories of the shards. If empty, shards are
+   *                  expected in the output directory.
+   * @Return Whether the merged output is complete.
+   */
+  public boolean mergeShards(final List<Path> shardDirs) {
+    final MozSearchShardMerger merger =
+        new MozSearchShardMerger(mSourceDir, mOutputDir, createFilter());
+    for (Path shardDir : shardDirs) {
+      merger.addShardDir(shardDir);
+    }
+    try {
+      final boolean complete = merger.merge();
+      for (String error : merger.getErrors()) {
+        System.err.println(error);
+      }
+      return complete;
+    } catch (IOException exception) {
+      System.err.println(exception);
+      return false;
+    }
+  }
 
-    // Add root directory from package syntax
-    StaticJavaParser.getConfiguration().setSymbolResolver(null);
-    for (Path file : files) {
-      try {
-        final CompilationUnit unit = StaticJavaParser.parse(file);
-        if (unit.getPackageDeclaration().isPresent()) {
-          final String packageName = unit.getPackageDeclaration().get().getName().toString();
-          final Path rootDir = getRootPath(file, packageName);
-          if (rootDir != null && !dirs.contains(rootDir)) {
-            solver.add(new JavaParserTypeSolver(rootDir));
-            dirs.add(rootDir);
+  /*
+   * Walk the source tree and queue Java files for workers as they are
+   * found, the most expensive ones first within a window of files.
+   *
+   * The cost of a file is its time in the previous run if it's known (see
+   * MozSearchFileTimings), or its size. The walk keeps up to
+   * WINDOW_SIZE_PER_WORKER files per worker that it found but didn't queue
+   * yet, and queues the most expensive of them whenever the window is
+   * full. This starts slow files early, so that workers don't finish the
+   * run with a few huge files while the others are idle, without walking
+   * the whole tree before indexing. A slow file found late in the walk
+   * still starts late, since files are only ordered within the window.
+   *
+   * Only the current path of the walk, the window and the queues are kept
+   * in memory. When the queue of the read stage is full, the walk waits
+   * for it.
+   */
+  private void indexTree(
+      final MozSearchPathFilter filter,
+      final MozSearchIndexManifest manifest,
+      final MozSearchTypeSolverRegistry registry)
+      throws IOException {
+    final PriorityQueue<IndexJob> window = new PriorityQueue<IndexJob>(COST_ORDER);
+    final int windowSize = mThreadPoolCount * WINDOW_SIZE_PER_WORKER;
+    Files.walkFileTree(
+        mSourceDir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (filter.isIgnored(dir)) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
           }
-        }
-      } catch (Exception exception) {
-        exception.printStackTrace();
-      }
 
-      if (!dirs.contains(file.getParent())) {
-        solver.add(new JavaParserTypeSolver(file.getParent()));
-        dirs.add(file.getParent());
-      }
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            // Symbolic links to directories aren't followed.
+            if (attrs.isDirectory() || !file.toString().endsWith(".java")) {
+              return FileVisitResult.CONTINUE;
+            }
+            if (filter.isIgnored(file)) {
+              return FileVisitResult.CONTINUE;
+            }
+            if (mShard != null) {
+              if (!mShard.contains(file)) {
+                return FileVisitResult.CONTINUE;
+              }
+              mShard.add(file);
+            }
+            long cost = attrs.size();
+            if (mTimings != null) {
+              cost = mTimings.predict(mSourceDir.relativize(file).toString(), attrs.size());
+            }
+            if (manifest != null && !manifest.isDirty(file)) {
+              return FileVisitResult.CONTINUE;
+            }
+            window.add(new IndexJob(file, attrs.size(), cost));
+            if (window.size() > windowSize) {
+              queueFile(registry, manifest, window.poll());
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exception) {
+            System.err.println(exception);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    while (!window.isEmpty()) {
+      queueFile(registry, manifest, window.poll());
     }
+  }
 
-    // Set Android SDK's JAR using ANDROID_SDK_ROOT
-    final String sdkroot = System.getenv("ANDROID_SDK_ROOT");
-    if (sdkroot != null && sdkroot.length() > 0) {
-      try {
-        final String[] apis = new String[] {"android-31", "android-30", "android-29", "android-28"};
-        for (String api : apis) {
-          final Path sdkrootPath = Paths.get(sdkroot, "platforms", api, "android.jar");
-          if (Files.exists(sdkrootPath)) {
-            solver.add(new JarTypeSolver(sdkrootPath));
-            break;
+  private void queueFile(
+      final MozSearchTypeSolverRegistry registry,
+      final MozSearchIndexManifest manifest,
+      final IndexJob job) {
+    mReadStage.submit(() -> readSource(registry, manifest, job));
+  }
+
+  private void readSource(
+      final MozSearchTypeSolverRegistry registry,
+      final MozSearchIndexManifest manifest,
+      final IndexJob job) {
+    try {
+      job.mSource = registry.readSourceFile(job.mFile);
+    } catch (IOException exception) {
+      // The index stage reads the file again, and fails the file.
+    }
+    mIndexStage.submit(
+        () -> {
+          final long start = System.nanoTime();
+          final boolean visited = visitSource(registry, manifest, mInterner, job, true);
+          if (mTimings != null) {
+            mTimings.record(
+                mSourceDir.relativize(job.mFile).toString(),
+                job.mSize,
+                System.nanoTime() - start);
           }
-        }
-      } catch (IOException exception) {
-      }
+          if (visited) {
+            mWriteStage.submit(() -> writeOutput(manifest, job));
+          }
+        });
+  }
+
+  /*
+   * Index a file on the current worker thread. If it fails, no output is
+   * left for the file.
+   *
+   * @Param interner Symbols shared with the other files of the job.
+   * @Return Whether the output was written.
+   */
+  boolean indexFile(
+      final MozSearchTypeSolverRegistry registry,
+      final MozSearchIndexManifest manifest,
+      final MozSearchSymbolInterner interner,
+      final Path file) {
+    if (!file.toString().endsWith(".java")) {
+      return true;
     }
+    final IndexJob job = new IndexJob(file, 0, 0);
+    return visitSource(registry, manifest, interner, job, false) && writeOutput(manifest, job);
+  }
+
+  /*
+   * Parse a file and output its records to a writer, which is kept in the
+   * job until writeOutput().
+   *
+   * @Param buffered Whether the writer keeps the records in memory.
+   * @Return Whether the file was visited. If not, the file is failed.
+   */
+  private boolean visitSource(
+      final MozSearchTypeSolverRegistry registry,
+      final MozSearchIndexManifest manifest,
+      final MozSearchSymbolInterner interner,
+      final IndexJob job,
+      final boolean buffered) {
+    final Path file = job.mFile;
+    System.out.println("Processing " + file.toString() + " ");
 
-    StaticJavaParser.getConfiguration().setSymbolResolver(new JavaSymbolSolver(solver));
+    final MozSearchFileMetrics metrics =
+        new MozSearchFileMetrics(mSourceDir.relativize(file).toString());
+    job.mMetrics = metrics;
+    try {
+      final MozSearchSourceCache.Source source =
+          job.mSource != null ? job.mSource : registry.readSourceFile(file);
+      job.mSource = null;
+      long start = System.nanoTime();
+      final CompilationUnit unit = registry.parse(file, source.getText());
+      metrics.setParseNanos(System.nanoTime() - start);
 
-    for (Path file : files) {
-      final Path output =
-          Paths.get(
-              outputDir.toString(), file.toString().substring(srcDir.toString().length() + 1));
+      final MozSearchAnalysisWriter writer =
+          new MozSearchAnalysisWriter(getOutputPath(file), mCompress, mBinary, buffered);
+      boolean visited = false;
       try {
-        makeIndex(file, output);
-      } catch (Exception exception) {
-        exception.printStackTrace();
-        try {
-          Files.delete(output);
-        } catch (IOException ioexception) {
+        if (mSymbolIndex != null) {
+          job.mSymbols = mSymbolIndex.newFile(metrics.getPath());
+          writer.setSymbols(job.mSymbols);
+        }
+        final MozSearchJSONOutputVisitor visitor = new MozSearchJSONOutputVisitor(writer, interner);
+        if (mTimeout > 0) {
+          visitor.setTimeout(mTimeout);
+        }
+        if (manifest != null) {
+          visitor.collectSymbols();
+        }
+        visitor.setMetrics(metrics);
+        visitor.setBudget(registry.getBudget());
+        visitor.setMemberCache(registry.getMemberCache());
+        start = System.nanoTime();
+        unit.accept(visitor, null);
+        metrics.setVisitNanos(System.nanoTime() - start);
+        metrics.setRecordCount(writer.getRecordCount());
+        if (manifest != null) {
+          job.mSourceSize = source.getSize();
+          job.mModifiedTime = source.getModifiedTime();
+          job.mHash = MozSearchIndexManifest.hash(source.getText());
+          job.mDefinedTypes = visitor.getDefinedTypes();
+          job.mDependencies = visitor.getSymbols();
+        }
+        job.mWriter = writer;
+        visited = true;
+      } finally {
+        if (!visited) {
+          writer.close();
         }
       }
+      return true;
+    } catch (Exception exception) {
+      fail(job, exception);
+      return false;
+    } finally {
+      registry.releaseFile();
     }
   }
 
-  private void makeIndex(final Path file, final Path outputPath)
-      throws IOException, ParseProblemException {
-    if (!file.toString().endsWith(".java")) {
-      return;
+  /*
+   * Commit the output of a visited file, and record it in the symbol index
+   * and the manifest.
+   *
+   * @Return Whether the output was written. If not, the file is failed.
+   */
+  private boolean writeOutput(final MozSearchIndexManifest manifest, final IndexJob job) {
+    try (MozSearchAnalysisWriter writer = job.mWriter) {
+      // Don't keep the records in memory once they're written.
+      job.mWriter = null;
+      writer.commit();
+      job.mMetrics.setCompleted();
+      if (job.mSymbols != null) {
+        mSymbolIndex.add(job.mSymbols);
+      }
+      if (manifest != null) {
+        manifest.update(
+            job.mFile,
+            job.mSourceSize,
+            job.mModifiedTime,
+            job.mHash,
+            job.mDefinedTypes,
+            job.mDependencies);
+      }
+    } catch (Exception exception) {
+      fail(job, exception);
+      return false;
+    }
+    if (mReport != null) {
+      mReport.add(job.mMetrics);
     }
+    return true;
+  }
 
-    System.out.println("Processing " + file.toString() + " ");
+  // Leave no output for a file which failed.
+  private void fail(final IndexJob job, final Exception exception) {
+    exception.printStackTrace();
+    try {
+      Files.delete(getOutputPath(job.mFile));
+    } catch (IOException ioexception) {
+    }
+    if (mReport != null) {
+      mReport.add(job.mMetrics);
+    }
+  }
 
-    final CompilationUnit unit = StaticJavaParser.parse(file);
-    final MozSearchJSONOutputVisitor visitor = new MozSearchJSONOutputVisitor(outputPath);
-    if (mTimeout > 0) {
-      visitor.setTimeout(mTimeout);
+  /*
+   * Remove the output of a deleted file.
+   */
+  void removeOutput(final Path file) throws IOException {
+    // Remove all forms, in case the previous run was with other options.
+    for (boolean compress : new boolean[] {false, true}) {
+      for (boolean binary : new boolean[] {false, true}) {
+        Files.deleteIfExists(getOutputPath(file, compress, binary));
+      }
     }
-    unit.accept(visitor, null);
   }
 }
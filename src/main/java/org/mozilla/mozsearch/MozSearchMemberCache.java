@@ -0,0 +1,165 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.resolution.types.ResolvedType;
+import com.github.javaparser.resolution.types.ResolvedWildcard;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONObject;
+
+/*
+ * Run-wide cache of resolved member accesses, shared by all workers.
+ *
+ * Calls such as System.out.println(x) are resolved thousands of times with
+ * the same receiver and argument types, and the symbol solver does
+ * overload resolution from scratch each time. The result only depends on
+ * those types, so it's kept by a key of the receiver type, the member name
+ * and the argument types. Only a name is kept, such as the qualified name
+ * of the method, since resolved declarations belong to the type solvers of
+ * a worker.
+ *
+ * Each entry has the steps of the resolution which filled it, so that a
+ * hit can be charged the same steps, and budgets run out at the same
+ * points whether or not the member was cached.
+ *
+ * The cache is bounded by an estimate of its memory use: when it is full,
+ * new entries aren't kept.
+ */
+public class MozSearchMemberCache {
+  public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+  // Estimate of the memory of an entry, besides the characters of the key
+  // and the result.
+  private static final int ENTRY_OVERHEAD = 96;
+
+  public static class Entry {
+    private final String mName;
+    private final long mSteps;
+
+    Entry(final String name, final long steps) {
+      mName = name;
+      mSteps = steps;
+    }
+
+    public String getName() {
+      return mName;
+    }
+
+    public long getSteps() {
+      return mSteps;
+    }
+  }
+
+  private final long mMaxBytes;
+  private final AtomicLong mBytes = new AtomicLong();
+  private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+  private final LongAdder mHits = new LongAdder();
+  private final LongAdder mMisses = new LongAdder();
+
+  public MozSearchMemberCache(final long maxBytes) {
+    mMaxBytes = maxBytes;
+  }
+
+  /*
+   * Build the key of a member access.
+   *
+   * @Param kind Kind of the access, such as "call" or "field".
+   * @Param receiver Type of the receiver, or the created type.
+   * @Param name Name of the member.
+   * @Param arguments Types of the arguments, or null for a field.
+   * @Return The key, or null if the access can't be cached because a type
+   *         depends on its scope, like a type variable does.
+   */
+  public static String getKey(
+      final String kind,
+      final ResolvedType receiver,
+      final String name,
+      final List<ResolvedType> arguments) {
+    if (!isCacheable(receiver)) {
+      return null;
+    }
+    final StringBuilder key = new StringBuilder(kind);
+    key.append(' ').append(receiver.describe()).append(' ').append(name);
+    if (arguments != null) {
+      key.append('(');
+      for (int i = 0; i < arguments.size(); i++) {
+        if (!isCacheable(arguments.get(i))) {
+          return null;
+        }
+        if (i > 0) {
+          key.append(',');
+        }
+        key.append(arguments.get(i).describe());
+      }
+      key.append(')');
+    }
+    return key.toString();
+  }
+
+  // Whether the type means the same wherever it's used.
+  private static boolean isCacheable(final ResolvedType type) {
+    if (type.isPrimitive() || type.isNull()) {
+      return true;
+    }
+    if (type.isArray()) {
+      return isCacheable(type.asArrayType().getComponentType());
+    }
+    if (type.isWildcard()) {
+      final ResolvedWildcard wildcard = type.asWildcard();
+      return !wildcard.isBounded() || isCacheable(wildcard.getBoundedType());
+    }
+    if (type.isReferenceType()) {
+      for (ResolvedType parameter : type.asReferenceType().typeParametersValues()) {
+        if (!isCacheable(parameter)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /*
+   * @Return The entry of the key, or null.
+   */
+  public Entry get(final String key) {
+    final Entry entry = mEntries.get(key);
+    if (entry != null) {
+      mHits.increment();
+    } else {
+      mMisses.increment();
+    }
+    return entry;
+  }
+
+  /*
+   * @Param name Result of the resolution, such as the qualified name of the
+   *             method.
+   * @Param steps Steps of the resolution.
+   */
+  public void put(final String key, final String name, final long steps) {
+    final long bytes = 2L * (key.length() + name.length()) + ENTRY_OVERHEAD;
+    if (mBytes.get() + bytes > mMaxBytes) {
+      return;
+    }
+    if (mEntries.putIfAbsent(key, new Entry(name, steps)) == null) {
+      mBytes.addAndGet(bytes);
+    }
+  }
+
+  /*
+   * Forget all entries, when sources which may declare the members changed.
+   */
+  public void clear() {
+    mEntries.clear();
+    mBytes.set(0);
+  }
+
+  public JSONObject toJSON() {
+    return new JSONObject()
+        .put("entries", mEntries.size())
+        .put("bytes", mBytes.get())
+        .put("hits", mHits.sum())
+        .put("misses", mMisses.sum());
+  }
+}
@@ -0,0 +1,340 @@
+package org.mozilla.mozsearch;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Index of the top-level types which each source root provides.
+ *
+ * A type a.b.C.D is looked up in a root like JavaParserTypeSolver does: as
+ * D nested in the top-level type C of the directory a/b, then as C.D in
+ * the top-level type b of the directory a, and so on. So the index maps
+ * each top-level type, with the path of its directory relative to a root
+ * (e.g. "a.b.C"), to the roots and the files which declare it. Each file
+ * is indexed under its own name too, as JavaParserTypeSolver always tries
+ * the file named after the type.
+ *
+ * The roots are discovered with a scan of the headers of the files (see
+ * MozSearchPackageScanner.scanHeader), which gives the first top-level type
+ * of each file. The other top-level types of a file are not public, so
+ * they are rarely used, and the files of a package are only scanned for
+ * them when a type of the package is first looked up, with their text from
+ * the source cache. Every directory is a root with a default package, so
+ * for a simple name, only the directory of the file being resolved is
+ * scanned, which is where a type of its default package can be used.
+ *
+ * The index isn't changed once it's built, except for the scanned packages,
+ * so it can be shared by all workers. The registry builds a new one from
+ * the files of the old one when files change.
+ */
+public class MozSearchPackageIndex {
+  /*
+   * Reads the text of a file for the scan of a package.
+   */
+  public interface SourceReader {
+    String read(Path file) throws IOException;
+  }
+
+  private static class SourceFile {
+    final Path mFile;
+    final List<String> mTypeNames;
+    // Position of the file in the order found.
+    final int mOrder;
+
+    SourceFile(final Path file, final List<String> typeNames, final int order) {
+      mFile = file;
+      mTypeNames = typeNames;
+      mOrder = order;
+    }
+
+    String getStem() {
+      final String fileName = mFile.getFileName().toString();
+      return fileName.substring(0, fileName.length() - ".java".length());
+    }
+  }
+
+  private static class Entry {
+    final int mRoot;
+    final Path mFile;
+    final boolean mNamedAfterType;
+    final int mOrder;
+
+    Entry(final int root, final SourceFile file, final boolean namedAfterType) {
+      mRoot = root;
+      mFile = file.mFile;
+      mNamedAfterType = namedAfterType;
+      mOrder = file.mOrder;
+    }
+  }
+
+  // A directory of a package, relative to a root.
+  private static class PackageDir {
+    final int mRoot;
+    final Path mDir;
+
+    PackageDir(final int root, final Path dir) {
+      mRoot = root;
+      mDir = dir;
+    }
+  }
+
+  // Files of each root first, the file named after the type first, then
+  // the others in the order of their directory.
+  private static final Comparator<Entry> ENTRY_ORDER =
+      new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry a, final Entry b) {
+          if (a.mRoot != b.mRoot) {
+            return Integer.compare(a.mRoot, b.mRoot);
+          }
+          if (a.mNamedAfterType != b.mNamedAfterType) {
+            return Boolean.compare(b.mNamedAfterType, a.mNamedAfterType);
+          }
+          return Integer.compare(a.mOrder, b.mOrder);
+        }
+      };
+
+  private final SourceReader mSources;
+  private final ArrayList<Path> mRoots = new ArrayList<Path>();
+  private final HashMap<Path, Integer> mRootIndexes = new HashMap<Path, Integer>();
+  private final LinkedHashMap<Path, List<SourceFile>> mDirs =
+      new LinkedHashMap<Path, List<SourceFile>>();
+  private final HashMap<String, List<Entry>> mTypes = new HashMap<String, List<Entry>>();
+  private final HashMap<String, List<PackageDir>> mPackages =
+      new HashMap<String, List<PackageDir>>();
+  // The other top-level types of the scanned packages, by package name, or
+  // by directory for the default package of a directory, as package names
+  // don't have separators.
+  private final ConcurrentHashMap<String, Map<String, List<Entry>>> mPackageTypes =
+      new ConcurrentHashMap<String, Map<String, List<Entry>>>();
+
+  /*
+   * @Param roots Source roots, in the order they're asked for types.
+   * @Param files Java files under the roots, in the order of their
+   *              directories, with the names of their first top-level types.
+   * @Param sources Reader of the files of the packages to scan.
+   */
+  public MozSearchPackageIndex(
+      final Collection<Path> roots,
+      final Map<Path, List<String>> files,
+      final SourceReader sources) {
+    mSources = sources;
+    for (Path root : roots) {
+      mRootIndexes.put(root, mRoots.size());
+      mRoots.add(root);
+    }
+    int order = 0;
+    for (Map.Entry<Path, List<String>> file : files.entrySet()) {
+      final Path dir = file.getKey().getParent();
+      List<SourceFile> dirFiles = mDirs.get(dir);
+      if (dirFiles == null) {
+        dirFiles = new ArrayList<SourceFile>();
+        mDirs.put(dir, dirFiles);
+      }
+      dirFiles.add(new SourceFile(file.getKey(), file.getValue(), order++));
+    }
+    for (Map.Entry<Path, List<SourceFile>> dir : mDirs.entrySet()) {
+      addDir(dir.getKey(), dir.getValue());
+    }
+    for (List<Entry> entries : mTypes.values()) {
+      Collections.sort(entries, ENTRY_ORDER);
+    }
+  }
+
+  private void addDir(final Path dir, final List<SourceFile> files) {
+    for (Path root = dir; root != null; root = root.getParent()) {
+      final Integer index = mRootIndexes.get(root);
+      if (index == null) {
+        continue;
+      }
+      final String packageName =
+          root.relativize(dir).toString().replace(dir.getFileSystem().getSeparator(), ".");
+      final String prefix = packageName.isEmpty() ? "" : packageName + ".";
+      if (!packageName.isEmpty()) {
+        List<PackageDir> dirs = mPackages.get(packageName);
+        if (dirs == null) {
+          dirs = new ArrayList<PackageDir>(1);
+          mPackages.put(packageName, dirs);
+        }
+        dirs.add(new PackageDir(index, dir));
+      }
+      for (SourceFile file : files) {
+        final String stem = file.getStem();
+        add(mTypes, prefix + stem, new Entry(index, file, true));
+        for (String typeName : file.mTypeNames) {
+          if (!typeName.equals(stem)) {
+            add(mTypes, prefix + typeName, new Entry(index, file, false));
+          }
+        }
+      }
+    }
+  }
+
+  private static void add(
+      final Map<String, List<Entry>> types, final String name, final Entry entry) {
+    List<Entry> entries = types.get(name);
+    if (entries == null) {
+      entries = new ArrayList<Entry>(1);
+      types.put(name, entries);
+    }
+    entries.add(entry);
+  }
+
+  /*
+   * @Return The Java files with the names of their first top-level types,
+   *         to build a new index from.
+   */
+  public Map<Path, List<String>> getFileTypes() {
+    final LinkedHashMap<Path, List<String>> files = new LinkedHashMap<Path, List<String>>();
+    for (List<SourceFile> dirFiles : mDirs.values()) {
+      for (SourceFile file : dirFiles) {
+        files.put(file.mFile, file.mTypeNames);
+      }
+    }
+    return files;
+  }
+
+  // The entries of a top-level type with its directory, such as "a.b.C".
+  private List<Entry> getEntries(final String name, final Path dir) {
+    final List<Entry> entries = mTypes.get(name);
+    final int dot = name.lastIndexOf('.');
+    final List<Entry> others;
+    if (dot >= 0) {
+      others = getPackageTypes(name.substring(0, dot)).get(name.substring(dot + 1));
+    } else if (entries == null && dir != null) {
+      others = getDirTypes(dir).get(name);
+    } else {
+      return entries;
+    }
+    if (others == null) {
+      return entries;
+    }
+    if (entries == null) {
+      return others;
+    }
+    final ArrayList<Entry> merged = new ArrayList<Entry>(entries.size() + others.size());
+    merged.addAll(entries);
+    merged.addAll(others);
+    Collections.sort(merged, ENTRY_ORDER);
+    return merged;
+  }
+
+  private Map<String, List<Entry>> getPackageTypes(final String packageName) {
+    final List<PackageDir> dirs = mPackages.get(packageName);
+    if (dirs == null) {
+      return Collections.<String, List<Entry>>emptyMap();
+    }
+    return getScannedTypes(packageName, dirs);
+  }
+
+  // The other top-level types of the default package of a directory.
+  private Map<String, List<Entry>> getDirTypes(final Path dir) {
+    final Integer index = mRootIndexes.get(dir);
+    if (index == null || !mDirs.containsKey(dir)) {
+      return Collections.<String, List<Entry>>emptyMap();
+    }
+    return getScannedTypes(dir.toString(), Collections.singletonList(new PackageDir(index, dir)));
+  }
+
+  private Map<String, List<Entry>> getScannedTypes(final String key, final List<PackageDir> dirs) {
+    Map<String, List<Entry>> types = mPackageTypes.get(key);
+    if (types == null) {
+      // Workers may scan a package at the same time, and they find the same
+      // types.
+      types = scanPackage(dirs);
+      final Map<String, List<Entry>> scanned = mPackageTypes.putIfAbsent(key, types);
+      if (scanned != null) {
+        types = scanned;
+      }
+    }
+    return types;
+  }
+
+  private Map<String, List<Entry>> scanPackage(final List<PackageDir> dirs) {
+    final HashMap<String, List<Entry>> types = new HashMap<String, List<Entry>>();
+    for (PackageDir dir : dirs) {
+      for (SourceFile file : mDirs.get(dir.mDir)) {
+        final List<String> typeNames;
+        try {
+          typeNames =
+              MozSearchPackageScanner.scanDeclarations(
+                      new StringReader(mSources.read(file.mFile)))
+                  .getTypeNames();
+        } catch (IOException exception) {
+          // The file may have been deleted.
+          continue;
+        }
+        final String stem = file.getStem();
+        for (String typeName : typeNames) {
+          if (!typeName.equals(stem) && !file.mTypeNames.contains(typeName)) {
+            add(types, typeName, new Entry(dir.mRoot, file, false));
+          }
+        }
+      }
+    }
+    for (List<Entry> entries : types.values()) {
+      Collections.sort(entries, ENTRY_ORDER);
+    }
+    return types;
+  }
+
+  /*
+   * @Param dir Directory of the file being resolved, or null.
+   * @Return The roots which may have the type, in the order of the roots.
+   */
+  public List<Path> getRoots(final String typeName, final Path dir) {
+    final BitSet indexes = new BitSet();
+    String name = typeName;
+    while (true) {
+      final List<Entry> entries = getEntries(name, dir);
+      if (entries != null) {
+        for (Entry entry : entries) {
+          indexes.set(entry.mRoot);
+        }
+      }
+      final int dot = name.lastIndexOf('.');
+      if (dot < 0) {
+        break;
+      }
+      name = name.substring(0, dot);
+    }
+    final ArrayList<Path> roots = new ArrayList<Path>(indexes.cardinality());
+    for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+      roots.add(mRoots.get(i));
+    }
+    return roots;
+  }
+
+  /*
+   * @Param name A top-level type with its directory relative to the root,
+   *             such as "a.b.C".
+   * @Param dir Directory of the file being resolved, or null.
+   * @Return The files of the root which may declare the type, in the order
+   *         to try them.
+   */
+  public List<Path> getFiles(final Path root, final String name, final Path dir) {
+    final List<Entry> entries = getEntries(name, dir);
+    final Integer index = mRootIndexes.get(root);
+    if (entries == null || index == null) {
+      return Collections.<Path>emptyList();
+    }
+    final ArrayList<Path> files = new ArrayList<Path>(entries.size());
+    for (Entry entry : entries) {
+      if (entry.mRoot == index.intValue()) {
+        files.add(entry.mFile);
+      }
+    }
+    return files;
+  }
+}
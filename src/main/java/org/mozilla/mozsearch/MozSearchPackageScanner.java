@@ -0,0 +1,332 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Reads the package name from the header of a Java source file.
+ *
+ * This only reads up to the package declaration (skipping comments and
+ * package annotations), so source roots can be found without parsing whole
+ * files. scanDeclarations() also finds the names of the top-level types
+ * with a light lexical scan of the rest of the file, and scanHeader() only
+ * reads up to the body of the first one.
+ */
+public class MozSearchPackageScanner {
+  /*
+   * Package and top-level types declared by a file.
+   */
+  public static class Declarations {
+    private final String mPackageName;
+    private final List<String> mTypeNames;
+
+    Declarations(final String packageName, final List<String> typeNames) {
+      mPackageName = packageName;
+      mTypeNames = typeNames;
+    }
+
+    /*
+     * @Return The package name, or null for the default package.
+     */
+    public String getPackageName() {
+      return mPackageName;
+    }
+
+    public List<String> getTypeNames() {
+      return mTypeNames;
+    }
+  }
+
+  private final Reader mReader;
+  private int mNext = -2;
+  // The last character before the next token, other than spaces.
+  private int mPrevious = 0;
+  // The identifier after the header, which scanPackage() read to find out
+  // that there's no package declaration.
+  private String mPending = "";
+
+  private MozSearchPackageScanner(final Reader reader) {
+    mReader = reader;
+  }
+
+  /*
+   * @Return The package name, or null if the file has no package
+   *         declaration.
+   */
+  public static String scan(final Path file) throws IOException {
+    // Unlike Files.newBufferedReader, this doesn't fail on malformed input.
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+      return new MozSearchPackageScanner(reader).scanPackage();
+    }
+  }
+
+  public static String scan(final Reader reader) throws IOException {
+    return new MozSearchPackageScanner(reader).scanPackage();
+  }
+
+  /*
+   * Read the package name and the names of the top-level types of a file.
+   * A broken file may have fewer types than it declares.
+   */
+  public static Declarations scanDeclarations(final Path file) throws IOException {
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+      return scanDeclarations(reader);
+    }
+  }
+
+  public static Declarations scanDeclarations(final Reader reader) throws IOException {
+    final MozSearchPackageScanner scanner = new MozSearchPackageScanner(reader);
+    final String packageName = scanner.scanPackage();
+    return new Declarations(packageName, scanner.scanTypeNames(false));
+  }
+
+  /*
+   * Read the package name and the name of the first top-level type of a
+   * file, without reading the body of the type and the rest of the file.
+   */
+  public static Declarations scanHeader(final Path file) throws IOException {
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+      return scanHeader(reader);
+    }
+  }
+
+  public static Declarations scanHeader(final Reader reader) throws IOException {
+    final MozSearchPackageScanner scanner = new MozSearchPackageScanner(reader);
+    final String packageName = scanner.scanPackage();
+    return new Declarations(packageName, scanner.scanTypeNames(true));
+  }
+
+  private int peek() throws IOException {
+    if (mNext == -2) {
+      mNext = mReader.read();
+    }
+    return mNext;
+  }
+
+  private int read() throws IOException {
+    final int c = peek();
+    mNext = -2;
+    return c;
+  }
+
+  // Skip white spaces, comments and BOM. Returns false on a broken comment.
+  private boolean skipSpaces() throws IOException {
+    while (true) {
+      final int c = peek();
+      if (c == '\uFEFF' || Character.isWhitespace(c)) {
+        read();
+        continue;
+      }
+      if (c != '/') {
+        return true;
+      }
+      read();
+      final int d = read();
+      if (d == '/') {
+        int e;
+        do {
+          e = read();
+        } while (e != '\n' && e != '\r' && e != -1);
+      } else if (d == '*') {
+        int prev = 0;
+        while (true) {
+          final int e = read();
+          if (e == -1) {
+            return false;
+          }
+          if (prev == '*' && e == '/') {
+            break;
+          }
+          prev = e;
+        }
+      } else {
+        return false;
+      }
+    }
+  }
+
+  private String readIdentifier() throws IOException {
+    final StringBuilder builder = new StringBuilder();
+    while (peek() != -1 && Character.isJavaIdentifierPart(peek())) {
+      builder.append((char) read());
+    }
+    return builder.toString();
+  }
+
+  private String readQualifiedName() throws IOException {
+    final StringBuilder builder = new StringBuilder();
+    while (true) {
+      if (!skipSpaces()) {
+        return null;
+      }
+      final String identifier = readIdentifier();
+      if (identifier.isEmpty()) {
+        return null;
+      }
+      builder.append(identifier);
+      if (!skipSpaces()) {
+        return null;
+      }
+      if (peek() != '.') {
+        return builder.toString();
+      }
+      read();
+      builder.append('.');
+    }
+  }
+
+  // Skip a string or character literal, after its opening quote.
+  private boolean skipLiteral(final int quote) throws IOException {
+    if (quote == '"' && peek() == '"') {
+      read();
+      if (peek() != '"') {
+        // An empty string.
+        return true;
+      }
+      read();
+      // A text block, which ends with three quotes.
+      int quotes = 0;
+      while (quotes < 3) {
+        final int e = read();
+        if (e == -1) {
+          return false;
+        }
+        quotes = e == '"' ? quotes + 1 : 0;
+        if (e == '\\') {
+          read();
+        }
+      }
+      return true;
+    }
+    int e;
+    while ((e = read()) != quote) {
+      if (e == -1) {
+        return false;
+      }
+      if (e == '\\') {
+        read();
+      }
+    }
+    return true;
+  }
+
+  // Skip annotation arguments, including nested parentheses and literals.
+  private boolean skipParentheses() throws IOException {
+    int depth = 0;
+    while (true) {
+      if (!skipSpaces()) {
+        return false;
+      }
+      final int c = read();
+      if (c == -1) {
+        return false;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+        if (depth == 0) {
+          return true;
+        }
+      } else if ((c == '"' || c == '\'') && !skipLiteral(c)) {
+        return false;
+      }
+    }
+  }
+
+  private String scanPackage() throws IOException {
+    while (true) {
+      if (!skipSpaces()) {
+        return null;
+      }
+      if (peek() == '@') {
+        read();
+        if (readQualifiedName() == null) {
+          return null;
+        }
+        if (peek() == '(' && !skipParentheses()) {
+          return null;
+        }
+        continue;
+      }
+
+      final String keyword = readIdentifier();
+      if (!keyword.equals("package")) {
+        // import, class and so on. This is default package.
+        mPending = keyword;
+        return null;
+      }
+      final String packageName = readQualifiedName();
+      if (packageName == null || peek() != ';') {
+        return null;
+      }
+      return packageName;
+    }
+  }
+
+  private static boolean isTypeKeyword(final String identifier) {
+    return identifier.equals("class")
+        || identifier.equals("interface")
+        || identifier.equals("enum")
+        || identifier.equals("record");
+  }
+
+  // Find declarations of types outside of any braces. The keyword must not
+  // follow a dot, like in Foo.class. With firstOnly, stop at the body of the
+  // first type.
+  private List<String> scanTypeNames(final boolean firstOnly) throws IOException {
+    final ArrayList<String> names = new ArrayList<String>();
+    int depth = 0;
+    while (skipSpaces()) {
+      final int c = peek();
+      if (c == -1) {
+        break;
+      }
+      if (mPending.isEmpty() && !Character.isJavaIdentifierStart(c)) {
+        read();
+        if ((c == '"' || c == '\'') && !skipLiteral(c)) {
+          break;
+        } else if (c == '{' && firstOnly && depth == 0 && !names.isEmpty()) {
+          break;
+        } else if (c == '{') {
+          depth++;
+        } else if (c == '}') {
+          depth--;
+        }
+        mPrevious = c;
+        continue;
+      }
+
+      final String identifier = mPending.isEmpty() ? readIdentifier() : mPending;
+      mPending = "";
+      if (depth == 0 && mPrevious != '.' && isTypeKeyword(identifier)) {
+        if (!skipSpaces()) {
+          break;
+        }
+        final String name = readIdentifier();
+        if (name.isEmpty()) {
+          mPrevious = 'a';
+          continue;
+        }
+        // record is only a keyword before a type name and its components.
+        if (!identifier.equals("record") || (skipSpaces() && (peek() == '(' || peek() == '<'))) {
+          names.add(name);
+        }
+      }
+      mPrevious = 'a';
+    }
+    return names;
+  }
+}
@@ -0,0 +1,71 @@
+package org.mozilla.mozsearch;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Rules of files and directories which aren't indexed.
+ *
+ * Directories of version control systems are always ignored. Other rules
+ * are globs (see FileSystem.getPathMatcher), which are matched against the
+ * path relative to the source directory, such as "third_party/*" or
+ * "**Test.java". A directory which matches is skipped with all files in
+ * it.
+ */
+public class MozSearchPathFilter {
+  /*
+   * Directories of generated sources of common build systems.
+   */
+  public static final List<String> GENERATED_SOURCE_GLOBS =
+      Arrays.asList(
+          "build/generated",
+          "**/build/generated",
+          "**/generated-sources",
+          "**/generated-src",
+          "**/apt_generated");
+
+  private final Path mSourceDir;
+  private final List<PathMatcher> mMatchers = new ArrayList<PathMatcher>();
+
+  public MozSearchPathFilter(final Path sourceDir, final List<String> globs) {
+    mSourceDir = sourceDir.toAbsolutePath();
+    for (String glob : globs) {
+      mMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+  }
+
+  public static boolean isVcsDirectory(final Path dir) {
+    final Path name = dir.getFileName();
+    if (name == null) {
+      return false;
+    }
+    return name.toString().equals(".git") || name.toString().equals(".hg");
+  }
+
+  /*
+   * @Return Whether the file or directory isn't indexed.
+   */
+  public boolean isIgnored(final Path path) {
+    if (isVcsDirectory(path)) {
+      return true;
+    }
+    if (mMatchers.isEmpty()) {
+      return false;
+    }
+    final Path absolute = path.toAbsolutePath();
+    if (!absolute.startsWith(mSourceDir) || absolute.equals(mSourceDir)) {
+      return false;
+    }
+    final Path relative = mSourceDir.relativize(absolute);
+    for (PathMatcher matcher : mMatchers) {
+      if (matcher.matches(relative)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
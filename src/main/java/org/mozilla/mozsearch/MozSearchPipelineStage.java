@@ -0,0 +1,144 @@
+package org.mozilla.mozsearch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONObject;
+
+/*
+ * A stage of the indexing pipeline: a pool of threads which run the tasks
+ * of the stage, with a bounded queue in front of them.
+ *
+ * When the queue is full, submit() waits for a thread of the stage to take
+ * a task, so a slow stage holds back the stages before it instead of
+ * letting work pile up in memory.
+ *
+ * The depth of the queue is sampled on every submit(). A stage whose queue
+ * is often full is the bottleneck of the pipeline, and the stages before it
+ * spend time waiting in submit(). That time isn't counted as busy time of
+ * the waiting stage.
+ *
+ * A task which throws is counted as failed. Tasks handle the failures of
+ * their own files, so a failed task means that the run lost work, such as
+ * a file which was never indexed.
+ */
+public class MozSearchPipelineStage {
+  // Time the current thread waited in submit(), to leave it out of the busy
+  // time of its own stage.
+  private static final ThreadLocal<long[]> WAIT_NANOS =
+      ThreadLocal.withInitial(() -> new long[1]);
+
+  private final String mName;
+  private final int mThreadCount;
+  private final int mQueueSize;
+  private final ThreadPoolExecutor mExecutor;
+  private final LongAdder mTasks = new LongAdder();
+  private final LongAdder mDepthSum = new LongAdder();
+  private final AtomicInteger mMaxDepth = new AtomicInteger();
+  private final LongAdder mFullCount = new LongAdder();
+  private final LongAdder mWaitNanos = new LongAdder();
+  private final LongAdder mBusyNanos = new LongAdder();
+  private final LongAdder mFailedTasks = new LongAdder();
+
+  /*
+   * @Param name Name of the stage in the report.
+   * @Param threadCount Number of tasks run at the same time.
+   * @Param queueSize Number of tasks waiting for a thread.
+   */
+  public MozSearchPipelineStage(final String name, final int threadCount, final int queueSize) {
+    mName = name;
+    mThreadCount = threadCount;
+    mQueueSize = queueSize;
+    mExecutor =
+        new ThreadPoolExecutor(
+            threadCount,
+            threadCount,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize),
+            MozSearchPipelineStage::waitForQueue);
+  }
+
+  // Back-pressure: when the queue is full, the caller waits for a thread to
+  // take a task.
+  private static void waitForQueue(final Runnable task, final ThreadPoolExecutor executor) {
+    if (executor.isShutdown()) {
+      throw new RejectedExecutionException("Stage is shut down");
+    }
+    try {
+      executor.getQueue().put(task);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException(exception);
+    }
+  }
+
+  /*
+   * Queue a task, waiting while the queue is full.
+   */
+  public void submit(final Runnable task) {
+    final int depth = mExecutor.getQueue().size();
+    mTasks.increment();
+    mDepthSum.add(depth);
+    mMaxDepth.accumulateAndGet(depth, Math::max);
+    if (depth >= mQueueSize) {
+      mFullCount.increment();
+    }
+    final long start = System.nanoTime();
+    mExecutor.execute(
+        () -> {
+          final long[] waitNanos = WAIT_NANOS.get();
+          final long taskWaitStart = waitNanos[0];
+          final long taskStart = System.nanoTime();
+          try {
+            task.run();
+          } catch (Throwable throwable) {
+            mFailedTasks.increment();
+            throwable.printStackTrace();
+          } finally {
+            mBusyNanos.add(System.nanoTime() - taskStart - (waitNanos[0] - taskWaitStart));
+          }
+        });
+    final long waitNanos = System.nanoTime() - start;
+    mWaitNanos.add(waitNanos);
+    WAIT_NANOS.get()[0] += waitNanos;
+  }
+
+  /*
+   * Wait for all queued tasks to finish. Tasks of the stages before this
+   * one must be finished first, since they submit tasks to this one.
+   */
+  public void finish() throws InterruptedException {
+    mExecutor.shutdown();
+    mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  /*
+   * @Return The number of tasks which threw.
+   */
+  public long getFailedTaskCount() {
+    return mFailedTasks.sum();
+  }
+
+  public JSONObject toJSON() {
+    final long tasks = mTasks.sum();
+    return new JSONObject()
+        .put("name", mName)
+        .put("threads", mThreadCount)
+        .put("queue_size", mQueueSize)
+        .put("tasks", tasks)
+        .put("max_queue_depth", mMaxDepth.get())
+        .put("mean_queue_depth", tasks > 0 ? (double) mDepthSum.sum() / tasks : 0.0)
+        .put("queue_full", mFullCount.sum())
+        .put("failed_tasks", mFailedTasks.sum())
+        .put("wait_ms", mWaitNanos.sum() / 1000000)
+        .put("busy_ms", mBusyNanos.sum() / 1000000);
+  }
+}
@@ -0,0 +1,198 @@
+package org.mozilla.mozsearch;
+
+/*
+ * Budget of symbol resolution work for a file.
+ *
+ * Work is counted in steps, which are type lookups through the root type
+ * solver of a worker (see MozSearchBudgetTypeSolver). Unlike wall-clock
+ * time, the count doesn't depend on the speed or the load of the machine.
+ *
+ * Each resolve() call may use up to the per-call limit, then it's aborted
+ * and the node is output unresolved, while the rest of the file is still
+ * resolved. Each file has a total budget too. Nodes are given a priority,
+ * and a node is resolved only while enough budget is left for the pending
+ * nodes of higher priorities, estimated from the average cost of the nodes
+ * resolved so far. So when a file is too expensive, names are given up
+ * first, then calls, then declarations.
+ *
+ * The steps of a file must not depend on the files its worker indexed
+ * before, or the output near the limits would depend on the number of
+ * workers. Workers drop what their solvers learned about nodes after each
+ * file (see MozSearchTypeSolverRegistry.releaseFile()), and the run-wide
+ * caches of missing types and resolved members charge a hit the steps of
+ * the lookup it replaces.
+ *
+ * An instance is used by one worker thread only.
+ */
+public class MozSearchResolutionBudget {
+  public static final long DEFAULT_FILE_STEPS = 1000000;
+  public static final long DEFAULT_CALL_STEPS = 20000;
+
+  // Types, methods and constructors. These are always resolved (within the
+  // per-call limit), since the output is most useful with them.
+  public static final int DEFINITION = 0;
+  // Fields, variables and parameters.
+  public static final int DECLARATION = 1;
+  // Method calls and object creations.
+  public static final int CALL = 2;
+  // Names, field accesses and type uses.
+  public static final int NAME = 3;
+  private static final int TIER_COUNT = 4;
+
+  // Cost estimate of a node until a node of the same tier is resolved.
+  private static final long INITIAL_ESTIMATE = 16;
+
+  /*
+   * Thrown from a type lookup when the current resolve() call ran out of
+   * steps. It has no stack trace since it's thrown often and always caught.
+   */
+  public static class ExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ExceededException() {
+      super("Resolution budget exceeded", null, false, false);
+    }
+  }
+
+  private long mFileSteps = DEFAULT_FILE_STEPS;
+  private long mCallSteps = DEFAULT_CALL_STEPS;
+
+  // State of the current file.
+  private long mUsedSteps = 0;
+  private final long[] mPending = new long[TIER_COUNT];
+  private final long[] mTierSteps = new long[TIER_COUNT];
+  private final long[] mTierCount = new long[TIER_COUNT];
+
+  // State of the current resolve() call.
+  private int mTier = -1;
+  private long mSteps = 0;
+  private long mLimit = Long.MAX_VALUE;
+
+  /*
+   * @Param fileSteps Total steps of a file, or 0 for no limit.
+   * @Param callSteps Steps of a resolve() call, or 0 for no limit.
+   */
+  public void setLimits(final long fileSteps, final long callSteps) {
+    mFileSteps = fileSteps;
+    mCallSteps = callSteps;
+  }
+
+  /*
+   * Reset the budget for a new file.
+   *
+   * @Param declarations Number of DECLARATION nodes in the file.
+   * @Param calls Number of CALL nodes in the file.
+   */
+  public void startFile(final long declarations, final long calls) {
+    mUsedSteps = 0;
+    for (int i = 0; i < TIER_COUNT; i++) {
+      mPending[i] = 0;
+      mTierSteps[i] = 0;
+      mTierCount[i] = 0;
+    }
+    mPending[DECLARATION] = declarations;
+    mPending[CALL] = calls;
+    mTier = -1;
+    mSteps = 0;
+    mLimit = Long.MAX_VALUE;
+  }
+
+  public long getUsedSteps() {
+    return mUsedSteps;
+  }
+
+  private long getEstimate(final int tier) {
+    if (mTierCount[tier] == 0) {
+      return INITIAL_ESTIMATE;
+    }
+    return Math.max(1, mTierSteps[tier] / mTierCount[tier]);
+  }
+
+  // Steps to keep for pending nodes which have higher priority than tier.
+  private long getReserve(final int tier) {
+    long reserve = 0;
+    for (int i = DECLARATION; i < tier; i++) {
+      reserve += mPending[i] * getEstimate(i);
+    }
+    return reserve;
+  }
+
+  /*
+   * Start resolving a node.
+   *
+   * @Return false if the node shouldn't be resolved. Otherwise end() must be
+   *         called when the resolution is done.
+   */
+  public boolean begin(final int tier) {
+    if (mPending[tier] > 0) {
+      mPending[tier]--;
+    }
+
+    long limit = mCallSteps > 0 ? mCallSteps : Long.MAX_VALUE;
+    if (tier != DEFINITION && mFileSteps > 0) {
+      final long available = mFileSteps - mUsedSteps - getReserve(tier);
+      if (available <= 0) {
+        return false;
+      }
+      limit = Math.min(limit, available);
+    }
+    mTier = tier;
+    mSteps = 0;
+    mLimit = limit;
+    return true;
+  }
+
+  /*
+   * Finish the current resolution.
+   *
+   * @Return Steps used by the resolution.
+   */
+  public long end() {
+    final long steps = Math.min(mSteps, mLimit);
+    mUsedSteps += steps;
+    if (mTier >= 0) {
+      mTierSteps[mTier] += steps;
+      mTierCount[mTier]++;
+    }
+    mTier = -1;
+    mSteps = 0;
+    mLimit = Long.MAX_VALUE;
+    return steps;
+  }
+
+  /*
+   * @Return Whether the current resolution ran out of steps.
+   */
+  public boolean isExceeded() {
+    return mSteps > mLimit;
+  }
+
+  /*
+   * @Return Steps used by the current resolution so far.
+   */
+  public long getSteps() {
+    return mSteps;
+  }
+
+  /*
+   * Count a step of the current resolution.
+   *
+   * @Throws ExceededException if the resolution ran out of steps.
+   */
+  public void step() {
+    charge(1);
+  }
+
+  /*
+   * Count steps of work which the current resolution didn't have to do
+   * again, such as a cached result (see MozSearchMemberCache).
+   *
+   * @Throws ExceededException if the resolution ran out of steps.
+   */
+  public void charge(final long steps) {
+    mSteps += steps;
+    if (mSteps > mLimit) {
+      throw new ExceededException();
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+ * Aggregated metrics of a whole run, written as a JSON report at the end.
+ *
+ * Workers add the metrics of each file when it is done. Only totals, a
+ * histogram of file times, the N slowest files and failures of a bounded
+ * number of unresolved symbols are kept, so memory use doesn't grow with
+ * the size of the tree.
+ */
+public class MozSearchRunReport {
+  private static final int DEFAULT_TOP_COUNT = 50;
+  // Failures of other symbols are counted as OTHER_FAILURES.
+  private static final int MAX_FAILURE_NAMES = 64 * 1024;
+  private static final String OTHER_FAILURES = "(other)";
+  // Upper bounds of histogram buckets, in milliseconds.
+  private static final long[] BUCKETS = {10, 100, 1000, 10 * 1000, 60 * 1000, 10 * 60 * 1000};
+  private static final Comparator<MozSearchFileMetrics> BY_TOTAL_TIME =
+      new Comparator<MozSearchFileMetrics>() {
+        @Override
+        public int compare(final MozSearchFileMetrics a, final MozSearchFileMetrics b) {
+          return Long.compare(a.getTotalNanos(), b.getTotalNanos());
+        }
+      };
+
+  private final int mTopCount;
+  private final long mStart = System.nanoTime();
+  private int mFileCount = 0;
+  private int mFailedCount = 0;
+  private int mLongTaskCount = 0;
+  private long mRecordCount = 0;
+  private long mParseNanos = 0;
+  private long mVisitNanos = 0;
+  private long mSteps = 0;
+  private final long[] mHistogram = new long[BUCKETS.length + 1];
+  private final HashMap<Class<?>, MozSearchFileMetrics.ResolveCounts> mResolveCounts =
+      new HashMap<Class<?>, MozSearchFileMetrics.ResolveCounts>();
+  private final HashMap<String, MozSearchFileMetrics.FailureCounts> mFailures =
+      new HashMap<String, MozSearchFileMetrics.FailureCounts>();
+  // Slowest files, the fastest one first.
+  private final PriorityQueue<MozSearchFileMetrics> mSlowest;
+  private MozSearchUnresolvedTypeCache mUnresolvedTypes;
+  private MozSearchMemberCache mMemberCache;
+  private List<MozSearchPipelineStage> mStages;
+
+  public MozSearchRunReport() {
+    this(DEFAULT_TOP_COUNT);
+  }
+
+  /*
+   * @Param topCount Number of the slowest files to list in the report.
+   */
+  public MozSearchRunReport(final int topCount) {
+    mTopCount = topCount;
+    mSlowest = new PriorityQueue<MozSearchFileMetrics>(Math.max(1, topCount), BY_TOTAL_TIME);
+  }
+
+  public synchronized void add(final MozSearchFileMetrics metrics) {
+    mFileCount++;
+    if (!metrics.isCompleted()) {
+      mFailedCount++;
+    }
+    if (metrics.isLongTask()) {
+      mLongTaskCount++;
+    }
+    mRecordCount += metrics.getRecordCount();
+    mParseNanos += metrics.getParseNanos();
+    mVisitNanos += metrics.getVisitNanos();
+    mSteps += metrics.getSteps();
+
+    final long millis = metrics.getTotalNanos() / 1000000;
+    int bucket = 0;
+    while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+      bucket++;
+    }
+    mHistogram[bucket]++;
+
+    for (Map.Entry<Class<?>, MozSearchFileMetrics.ResolveCounts> entry :
+        metrics.getResolveCounts().entrySet()) {
+      MozSearchFileMetrics.ResolveCounts counts = mResolveCounts.get(entry.getKey());
+      if (counts == null) {
+        counts = new MozSearchFileMetrics.ResolveCounts();
+        mResolveCounts.put(entry.getKey(), counts);
+      }
+      counts.add(entry.getValue());
+    }
+
+    for (Map.Entry<String, MozSearchFileMetrics.FailureCounts> entry :
+        metrics.getFailures().entrySet()) {
+      String name = entry.getKey();
+      if (!mFailures.containsKey(name) && mFailures.size() >= MAX_FAILURE_NAMES) {
+        name = OTHER_FAILURES;
+      }
+      MozSearchFileMetrics.FailureCounts counts = mFailures.get(name);
+      if (counts == null) {
+        counts = new MozSearchFileMetrics.FailureCounts();
+        mFailures.put(name, counts);
+      }
+      counts.add(entry.getValue());
+    }
+
+    if (mTopCount <= 0) {
+      return;
+    }
+    if (mSlowest.size() < mTopCount) {
+      mSlowest.add(metrics);
+    } else if (BY_TOTAL_TIME.compare(metrics, mSlowest.peek()) > 0) {
+      mSlowest.poll();
+      mSlowest.add(metrics);
+    }
+  }
+
+  /*
+   * Include the counts of the run-wide cache of missing types in the
+   * report.
+   */
+  public synchronized void setUnresolvedTypes(final MozSearchUnresolvedTypeCache unresolvedTypes) {
+    mUnresolvedTypes = unresolvedTypes;
+  }
+
+  /*
+   * Include the hit counts of the run-wide cache of resolved members in the
+   * report.
+   */
+  public synchronized void setMemberCache(final MozSearchMemberCache memberCache) {
+    mMemberCache = memberCache;
+  }
+
+  /*
+   * Include the queue depths and the busy time of the stages of the
+   * indexing pipeline in the report.
+   */
+  public synchronized void setStages(final List<MozSearchPipelineStage> stages) {
+    mStages = stages;
+  }
+
+  // Unresolved symbols which took the most time, the slowest one first.
+  private JSONArray getCostliestFailures() {
+    final List<Map.Entry<String, MozSearchFileMetrics.FailureCounts>> entries =
+        new ArrayList<Map.Entry<String, MozSearchFileMetrics.FailureCounts>>(mFailures.entrySet());
+    Collections.sort(
+        entries,
+        new Comparator<Map.Entry<String, MozSearchFileMetrics.FailureCounts>>() {
+          @Override
+          public int compare(
+              final Map.Entry<String, MozSearchFileMetrics.FailureCounts> a,
+              final Map.Entry<String, MozSearchFileMetrics.FailureCounts> b) {
+            return Long.compare(b.getValue().getNanos(), a.getValue().getNanos());
+          }
+        });
+    final JSONArray array = new JSONArray();
+    for (Map.Entry<String, MozSearchFileMetrics.FailureCounts> entry :
+        entries.subList(0, Math.min(Math.max(0, mTopCount), entries.size()))) {
+      array.put(
+          new JSONObject()
+              .put("name", entry.getKey())
+              .put("failures", entry.getValue().getCount())
+              .put("ms", entry.getValue().getNanos() / 1000000));
+    }
+    return array;
+  }
+
+  private JSONObject getHistogram() {
+    final JSONObject obj = new JSONObject();
+    for (int i = 0; i < BUCKETS.length; i++) {
+      obj.put("<" + BUCKETS[i] + "ms", mHistogram[i]);
+    }
+    obj.put(">=" + BUCKETS[BUCKETS.length - 1] + "ms", mHistogram[BUCKETS.length]);
+    return obj;
+  }
+
+  public synchronized JSONObject toJSON() {
+    final List<MozSearchFileMetrics> slowest = new ArrayList<MozSearchFileMetrics>(mSlowest);
+    Collections.sort(slowest, Collections.reverseOrder(BY_TOTAL_TIME));
+    final JSONArray slowestArray = new JSONArray();
+    for (MozSearchFileMetrics metrics : slowest) {
+      slowestArray.put(metrics.toJSON());
+    }
+
+    final JSONObject report =
+        new JSONObject()
+            .put("elapsed_ms", (System.nanoTime() - mStart) / 1000000)
+            .put("files", mFileCount)
+            .put("failed_files", mFailedCount)
+            .put("long_task_files", mLongTaskCount)
+            .put("records", mRecordCount)
+            .put("parse_ms", mParseNanos / 1000000)
+            .put("visit_ms", mVisitNanos / 1000000)
+            .put("steps", mSteps)
+            .put("file_time_histogram", getHistogram())
+            .put("resolve", MozSearchFileMetrics.toJSON(mResolveCounts))
+            .put("unresolved_symbols", getCostliestFailures())
+            .put("slowest_files", slowestArray);
+    if (mUnresolvedTypes != null) {
+      report.put("unresolved_type_cache", mUnresolvedTypes.toJSON());
+    }
+    if (mMemberCache != null) {
+      report.put("member_cache", mMemberCache.toJSON());
+    }
+    if (mStages != null) {
+      final JSONArray stages = new JSONArray();
+      for (MozSearchPipelineStage stage : mStages) {
+        stages.put(stage.toJSON());
+      }
+      report.put("stages", stages);
+    }
+    return report;
+  }
+
+  public void write(final Path path) throws IOException {
+    final Path parent = path.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+      writer.write(toJSON().toString(2));
+      writer.write('\n');
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.json.JSONObject;
+
+/*
+ * A shard of the source tree, to index a large tree with several processes
+ * on one or more machines.
+ *
+ * Files are assigned to shards by a hash of their source root, the
+ * directory of the root package which they declare (see
+ * MozSearchTypeSolverRegistry.getPackageRoots). All files of a root are
+ * indexed by the same process, so lookups of types in the root are done
+ * once. When a few roots have most of the files, files can be assigned by
+ * their package directory instead, which balances the shards better at the
+ * cost of repeated lookups.
+ *
+ * The assignment only depends on paths relative to the source directory,
+ * so every process computes the same partition. Each shard writes the
+ * files it indexed to a manifest in its output directory, which
+ * MozSearchShardMerger uses to check that the shards cover the tree
+ * without overlaps.
+ */
+public class MozSearchShard {
+  public static final String MANIFEST_PREFIX = ".mozsearch-java-shard-";
+  static final int VERSION = 1;
+
+  private final int mIndex;
+  private final int mCount;
+  private final boolean mByPackage;
+  private Path mSourceDir;
+  // Longest roots first, so that nested roots win.
+  private final List<Path> mRoots = new ArrayList<Path>();
+  private final List<String> mFiles = new ArrayList<String>();
+
+  /*
+   * @Param index Index of this shard, from 0 to count - 1.
+   * @Param count Number of shards.
+   * @Param byPackage Whether to assign files by package directory instead
+   *                  of source root.
+   */
+  public MozSearchShard(final int index, final int count, final boolean byPackage) {
+    if (count <= 0 || index < 0 || index >= count) {
+      throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+    }
+    mIndex = index;
+    mCount = count;
+    mByPackage = byPackage;
+  }
+
+  /*
+   * Parse a shard given as "i/N", such as "0/4".
+   */
+  public static MozSearchShard parse(final String shard, final boolean byPackage) {
+    final int slash = shard.indexOf('/');
+    if (slash < 0) {
+      throw new IllegalArgumentException("Shard must be given as i/N: " + shard);
+    }
+    return new MozSearchShard(
+        Integer.parseInt(shard.substring(0, slash)),
+        Integer.parseInt(shard.substring(slash + 1)),
+        byPackage);
+  }
+
+  public int getIndex() {
+    return mIndex;
+  }
+
+  public int getCount() {
+    return mCount;
+  }
+
+  public static String getManifestName(final int index, final int count) {
+    return MANIFEST_PREFIX + index + "-of-" + count;
+  }
+
+  /*
+   * Set the source directory and the roots of its packages, which must be
+   * the same in all shards. The directories of files aren't roots here, or
+   * every file would be assigned by its directory.
+   */
+  public void setRoots(final Path sourceDir, final List<Path> roots) {
+    mSourceDir = sourceDir.toAbsolutePath();
+    mRoots.clear();
+    mRoots.addAll(roots);
+    Collections.sort(
+        mRoots,
+        new Comparator<Path>() {
+          @Override
+          public int compare(final Path a, final Path b) {
+            return Integer.compare(b.getNameCount(), a.getNameCount());
+          }
+        });
+  }
+
+  // Relative path with "/" separators, so that the hash doesn't depend on
+  // the platform or the location of the tree.
+  private String toKey(final Path dir) {
+    final StringBuilder key = new StringBuilder();
+    for (Path name : mSourceDir.relativize(dir)) {
+      key.append('/').append(name.toString());
+    }
+    return key.toString();
+  }
+
+  private Path getGroup(final Path file) {
+    if (!mByPackage) {
+      for (Path root : mRoots) {
+        if (file.startsWith(root)) {
+          return root;
+        }
+      }
+    }
+    // Files which aren't in a source root are assigned by directory too.
+    return file.getParent();
+  }
+
+  /*
+   * @Return Whether the file belongs to this shard.
+   */
+  public boolean contains(final Path file) {
+    // String.hashCode is specified, so it is the same on every JVM.
+    return Math.floorMod(toKey(getGroup(file.toAbsolutePath())).hashCode(), mCount) == mIndex;
+  }
+
+  /*
+   * Record a file indexed by this shard. This is called by the thread which
+   * walks the tree only.
+   */
+  public void add(final Path file) {
+    mFiles.add(mSourceDir.relativize(file.toAbsolutePath()).toString());
+  }
+
+  /*
+   * Write the manifest of this shard to the output directory.
+   */
+  public void save(final Path outputDir) throws IOException {
+    final String name = getManifestName(mIndex, mCount);
+    final Path path = outputDir.toAbsolutePath().resolve(name);
+    final Path tempPath = path.resolveSibling(name + ".tmp");
+    Files.createDirectories(path.getParent());
+    try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+      writer.write(
+          new JSONObject()
+              .put("version", VERSION)
+              .put("shard", mIndex)
+              .put("count", mCount)
+              .put("partition", mByPackage ? "package" : "root")
+              .toString());
+      writer.write('\n');
+      for (String file : mFiles) {
+        writer.write(new JSONObject().put("path", file).toString());
+        writer.write('\n');
+      }
+    }
+    Files.move(
+        tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,206 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONObject;
+
+/*
+ * Merge the outputs of shards (see MozSearchShard) into one output
+ * directory.
+ *
+ * The manifests of the shards are checked against the source tree: every
+ * file must be indexed by exactly one shard, and all shards must be
+ * present. Outputs of shards which were written to other directories, for
+ * example on other machines, are copied to the output directory.
+ */
+public class MozSearchShardMerger {
+  private final Path mSourceDir;
+  private final Path mOutputDir;
+  private final MozSearchPathFilter mFilter;
+  private final List<Path> mShardDirs = new ArrayList<Path>();
+  private final List<String> mErrors = new ArrayList<String>();
+  // Shard directory of each indexed file, sorted to report in a stable order.
+  private final TreeMap<String, Path> mOwners = new TreeMap<String, Path>();
+
+  /*
+   * @Param filter Files to ignore, same as the shards.
+   */
+  public MozSearchShardMerger(
+      final Path sourceDir, final Path outputDir, final MozSearchPathFilter filter) {
+    mSourceDir = sourceDir.toAbsolutePath();
+    mOutputDir = outputDir.toAbsolutePath();
+    mFilter = filter;
+  }
+
+  /*
+   * Add an output directory of shards. If none is added, the shards are
+   * expected in the output directory.
+   */
+  public void addShardDir(final Path shardDir) {
+    mShardDirs.add(shardDir.toAbsolutePath());
+  }
+
+  public List<String> getErrors() {
+    return mErrors;
+  }
+
+  /*
+   * @Return Whether the shards cover the tree without overlaps. Outputs are
+   *         copied even if they don't.
+   */
+  public boolean merge() throws IOException {
+    mErrors.clear();
+    mOwners.clear();
+    if (mShardDirs.isEmpty()) {
+      mShardDirs.add(mOutputDir);
+    }
+
+    final HashMap<Integer, Path> shards = new HashMap<Integer, Path>();
+    int count = -1;
+    String partition = null;
+    for (Path shardDir : mShardDirs) {
+      try (DirectoryStream<Path> manifests =
+          Files.newDirectoryStream(shardDir, MozSearchShard.MANIFEST_PREFIX + "*-of-*")) {
+        for (Path manifest : manifests) {
+          if (manifest.toString().endsWith(".tmp")) {
+            continue;
+          }
+          try (BufferedReader reader =
+              Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            final JSONObject header = new JSONObject(reader.readLine());
+            if (header.getInt("version") != MozSearchShard.VERSION) {
+              mErrors.add("Unsupported shard manifest: " + manifest);
+              continue;
+            }
+            final int index = header.getInt("shard");
+            if (count < 0) {
+              count = header.getInt("count");
+              partition = header.getString("partition");
+            } else if (count != header.getInt("count")
+                || !partition.equals(header.getString("partition"))) {
+              mErrors.add("Shard " + manifest + " is of a different partition");
+              continue;
+            }
+            if (shards.containsKey(index)) {
+              mErrors.add(
+                  "Shard " + index + " is in both " + shards.get(index) + " and " + shardDir);
+              continue;
+            }
+            shards.put(index, shardDir);
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+              final String path = new JSONObject(line).getString("path");
+              final Path owner = mOwners.put(path, shardDir);
+              if (owner != null) {
+                mErrors.add(path + " is indexed by more than one shard");
+              }
+            }
+          }
+        }
+      }
+    }
+
+    if (count < 0) {
+      mErrors.add("No shard manifests found");
+      return false;
+    }
+    for (int i = 0; i < count; i++) {
+      if (!shards.containsKey(i)) {
+        mErrors.add("Shard " + i + "/" + count + " is missing");
+      }
+    }
+
+    checkCoverage();
+    copyOutputs();
+    return mErrors.isEmpty();
+  }
+
+  // Every file that the shards would index must be in one manifest.
+  private void checkCoverage() throws IOException {
+    final HashSet<String> seen = new HashSet<String>();
+    Files.walkFileTree(
+        mSourceDir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (mFilter.isIgnored(dir)) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (attrs.isDirectory()
+                || !file.toString().endsWith(".java")
+                || mFilter.isIgnored(file)) {
+              return FileVisitResult.CONTINUE;
+            }
+            final String path = mSourceDir.relativize(file).toString();
+            seen.add(path);
+            if (!mOwners.containsKey(path)) {
+              mErrors.add(path + " isn't indexed by any shard");
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exception) {
+            System.err.println(exception);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    for (String path : mOwners.keySet()) {
+      if (!seen.contains(path)) {
+        mErrors.add(path + " is indexed by a shard but isn't in the tree");
+      }
+    }
+  }
+
+  // Shards may write any form of analysis files.
+  private static Path findOutput(final Path shardDir, final String path) {
+    for (boolean compress : new boolean[] {false, true}) {
+      for (boolean binary : new boolean[] {false, true}) {
+        final Path output =
+            shardDir.resolve(path + MozSearchAnalysisWriter.getSuffix(compress, binary));
+        if (Files.exists(output)) {
+          return output;
+        }
+      }
+    }
+    return null;
+  }
+
+  private void copyOutputs() throws IOException {
+    for (Map.Entry<String, Path> entry : mOwners.entrySet()) {
+      final Path shardDir = entry.getValue();
+      final Path output = findOutput(shardDir, entry.getKey());
+      if (output == null) {
+        // Indexing of the file failed in the shard.
+        System.err.println("No output of " + entry.getKey());
+        continue;
+      }
+      if (shardDir.equals(mOutputDir)) {
+        continue;
+      }
+      final Path target = mOutputDir.resolve(shardDir.relativize(output));
+      Files.createDirectories(target.getParent());
+      Files.copy(output, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
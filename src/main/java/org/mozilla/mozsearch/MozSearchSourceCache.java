@@ -0,0 +1,161 @@
+package org.mozilla.mozsearch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Decoded text of source files, shared by all workers.
+ *
+ * A file is read and decoded once, then its text is kept for the indexing
+ * pass and the type solvers of every worker, which look up the declaring
+ * files of types again and again. Large files are memory-mapped instead of
+ * copied through a stream. The least recently used files are evicted when
+ * the total size of the kept files is over the limit.
+ */
+public class MozSearchSourceCache {
+  public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+  // Mapping has a fixed cost and the mapping is only released by the GC, so
+  // smaller files are read into a heap buffer.
+  private static final int MAP_THRESHOLD = 64 * 1024;
+
+  /*
+   * Text of a file, with the size and the modification time that the file
+   * had when it was read.
+   */
+  public static class Source {
+    private final String mText;
+    private final long mSize;
+    private final long mModifiedTime;
+
+    Source(final String text, final long size, final long modifiedTime) {
+      mText = text;
+      mSize = size;
+      mModifiedTime = modifiedTime;
+    }
+
+    public String getText() {
+      return mText;
+    }
+
+    public long getSize() {
+      return mSize;
+    }
+
+    // Milliseconds since the epoch, read before the text, so that a change
+    // while reading makes the file look modified.
+    public long getModifiedTime() {
+      return mModifiedTime;
+    }
+  }
+
+  private final Charset mCharset;
+  private final long mMaxBytes;
+  private long mBytes = 0;
+  // Files by absolute path, the least recently used one first.
+  private final LinkedHashMap<Path, Source> mEntries =
+      new LinkedHashMap<Path, Source>(16, 0.75f, true);
+
+  /*
+   * @Param charset Encoding of source files.
+   * @Param maxBytes Total size of the files to keep, or 0 to keep nothing.
+   */
+  public MozSearchSourceCache(final Charset charset, final long maxBytes) {
+    mCharset = charset;
+    mMaxBytes = maxBytes;
+  }
+
+  /*
+   * @Return The text of the file. The same instance is returned until the
+   *         file is evicted or invalidated.
+   */
+  public String read(final Path file) throws IOException {
+    return readSource(file).getText();
+  }
+
+  /*
+   * Same as read(), with the attributes of the file that the text was read
+   * from.
+   */
+  public Source readSource(final Path file) throws IOException {
+    final Path key = file.toAbsolutePath();
+    synchronized (this) {
+      final Source entry = mEntries.get(key);
+      if (entry != null) {
+        return entry;
+      }
+    }
+
+    final long modifiedTime = Files.getLastModifiedTime(key).toMillis();
+    final Source source;
+    try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      source = new Source(decode(channel, size), size, modifiedTime);
+    }
+    if (source.mSize > mMaxBytes) {
+      return source;
+    }
+
+    synchronized (this) {
+      // Another worker may have read the file meanwhile.
+      final Source existing = mEntries.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      mEntries.put(key, source);
+      mBytes += source.mSize;
+      final Iterator<Source> iterator = mEntries.values().iterator();
+      while (mBytes > mMaxBytes && iterator.hasNext()) {
+        mBytes -= iterator.next().mSize;
+        iterator.remove();
+      }
+    }
+    return source;
+  }
+
+  private String decode(final FileChannel channel, final long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Too large source file: " + size + " bytes");
+    }
+    final ByteBuffer buffer;
+    if (size >= MAP_THRESHOLD) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } else {
+      buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}
+      buffer.flip();
+    }
+    // Same as the reader of JavaParser's providers.
+    return mCharset
+        .newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+        .decode(buffer)
+        .toString();
+  }
+
+  /*
+   * Drop the texts of changed, added or deleted files.
+   */
+  public synchronized void invalidate(final Collection<Path> files) {
+    for (Path file : files) {
+      final Path key = file.toAbsolutePath();
+      final Source entry = mEntries.remove(key);
+      if (entry != null) {
+        mBytes -= entry.mSize;
+      }
+    }
+  }
+
+  public synchronized long getBytes() {
+    return mBytes;
+  }
+}
@@ -0,0 +1,123 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
+import com.github.javaparser.symbolsolver.javaparsermodel.JavaParserFacade;
+import com.github.javaparser.symbolsolver.model.resolution.SymbolReference;
+import com.github.javaparser.symbolsolver.model.resolution.TypeSolver;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/*
+ * Type solver of a source root, which can be invalidated when sources in
+ * the root change.
+ *
+ * Types are looked up like JavaParserTypeSolver does: first in the file
+ * named after the type, then in the other files of its package directory.
+ * Only the files which declare the top-level type are tried, as found by
+ * the registry's MozSearchPackageIndex, so lookups of types which the root
+ * doesn't have don't touch the disk. Files
+ * are parsed and searched through the registry (see
+ * MozSearchTypeSolverRegistry.findType), so the solvers of all roots and
+ * the indexing pass of a worker share parsed files, and the worker's cache
+ * of them is bounded.
+ *
+ * The solver doesn't keep lookup results itself: a found type holds the
+ * whole tree of its file, so the results are kept with the parsed file in
+ * the worker's cache, and are dropped with it.
+ */
+public class MozSearchSourceRootTypeSolver implements TypeSolver {
+  private final MozSearchTypeSolverRegistry mRegistry;
+  private final Path mRoot;
+  private TypeSolver mParent;
+  // The root may have been deleted after it was discovered.
+  private boolean mExists;
+  private long mRootGeneration;
+  private long mCheckedGeneration;
+
+  public MozSearchSourceRootTypeSolver(
+      final MozSearchTypeSolverRegistry registry, final Path root) {
+    mRegistry = registry;
+    mRoot = root.toAbsolutePath();
+    mCheckedGeneration = registry.getGeneration();
+    mRootGeneration = registry.getRootGeneration(root);
+    mExists = Files.isDirectory(mRoot);
+  }
+
+  @Override
+  public TypeSolver getParent() {
+    return mParent;
+  }
+
+  @Override
+  public void setParent(TypeSolver parent) {
+    if (mParent != null) {
+      throw new IllegalStateException("This TypeSolver already has a parent.");
+    }
+    mParent = parent;
+  }
+
+  @Override
+  public SymbolReference<ResolvedReferenceTypeDeclaration> tryToSolveType(String name) {
+    // Checking the global generation first keeps lookups cheap when nothing
+    // was invalidated.
+    final long generation = mRegistry.getGeneration();
+    if (generation != mCheckedGeneration) {
+      mCheckedGeneration = generation;
+      final long rootGeneration = mRegistry.getRootGeneration(mRoot);
+      if (rootGeneration != mRootGeneration) {
+        mRootGeneration = rootGeneration;
+        mExists = Files.isDirectory(mRoot);
+      }
+    }
+    if (!mExists) {
+      return SymbolReference.unsolved(ResolvedReferenceTypeDeclaration.class);
+    }
+    return lookUpType(name);
+  }
+
+  private SymbolReference<ResolvedReferenceTypeDeclaration> lookUpType(final String name) {
+    final MozSearchPackageIndex index = mRegistry.getPackageIndex();
+    final Path currentDir = mRegistry.getCurrentDir();
+    final String[] elements = name.split("\\.");
+    // Try a.b.C.D as the top-level type D of a/b/C, then as D nested in the
+    // top-level type C of a/b, and so on.
+    for (int i = elements.length; i > 0; i--) {
+      final StringBuilder topLevelName = new StringBuilder();
+      for (int j = 0; j < i; j++) {
+        if (j > 0) {
+          topLevelName.append('.');
+        }
+        topLevelName.append(elements[j]);
+      }
+      final StringBuilder typeName = new StringBuilder(elements[i - 1]);
+      for (int j = i; j < elements.length; j++) {
+        typeName.append('.').append(elements[j]);
+      }
+
+      for (Path file : index.getFiles(mRoot, topLevelName.toString(), currentDir)) {
+        final Optional<TypeDeclaration<?>> declaration = findType(file, typeName.toString());
+        if (declaration.isPresent()) {
+          return solved(declaration.get());
+        }
+      }
+    }
+    return SymbolReference.unsolved(ResolvedReferenceTypeDeclaration.class);
+  }
+
+  private SymbolReference<ResolvedReferenceTypeDeclaration> solved(
+      final TypeDeclaration<?> declaration) {
+    return SymbolReference.solved(JavaParserFacade.get(this).getTypeDeclaration(declaration));
+  }
+
+  private Optional<TypeDeclaration<?>> findType(final Path file, final String typeName) {
+    try {
+      return mRegistry.findType(file, typeName);
+    } catch (IOException exception) {
+      // The file may have been deleted.
+      return Optional.empty();
+    }
+  }
+}
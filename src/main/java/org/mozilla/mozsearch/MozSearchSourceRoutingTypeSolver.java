@@ -0,0 +1,65 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
+import com.github.javaparser.symbolsolver.model.resolution.SymbolReference;
+import com.github.javaparser.symbolsolver.model.resolution.TypeSolver;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/*
+ * Type solver of all source roots, which sends each lookup only to the
+ * roots which declare the top-level type of it (see MozSearchPackageIndex).
+ *
+ * Trees have a root for every directory of Java files, so asking every
+ * root in turn makes lookups slower as the tree grows. The roots are still
+ * asked in the order of the registry, so the first root which has the type
+ * wins as before. Solvers of roots are created on their first lookup.
+ *
+ * This isn't thread safe. Each worker has its own instance.
+ */
+public class MozSearchSourceRoutingTypeSolver implements TypeSolver {
+  private final MozSearchTypeSolverRegistry mRegistry;
+  private final HashMap<Path, MozSearchSourceRootTypeSolver> mSolvers =
+      new HashMap<Path, MozSearchSourceRootTypeSolver>();
+  private TypeSolver mParent;
+
+  public MozSearchSourceRoutingTypeSolver(final MozSearchTypeSolverRegistry registry) {
+    mRegistry = registry;
+  }
+
+  @Override
+  public TypeSolver getParent() {
+    return mParent;
+  }
+
+  @Override
+  public void setParent(TypeSolver parent) {
+    if (mParent != null) {
+      throw new IllegalStateException("This TypeSolver already has a parent.");
+    }
+    mParent = parent;
+  }
+
+  private MozSearchSourceRootTypeSolver getSolver(final Path root) {
+    MozSearchSourceRootTypeSolver solver = mSolvers.get(root);
+    if (solver == null) {
+      solver = new MozSearchSourceRootTypeSolver(mRegistry, root);
+      // Root solvers resolve other types through the same root.
+      solver.setParent(this);
+      mSolvers.put(root, solver);
+    }
+    return solver;
+  }
+
+  @Override
+  public SymbolReference<ResolvedReferenceTypeDeclaration> tryToSolveType(String name) {
+    for (Path root : mRegistry.getPackageIndex().getRoots(name, mRegistry.getCurrentDir())) {
+      final SymbolReference<ResolvedReferenceTypeDeclaration> reference =
+          getSolver(root).tryToSolveType(name);
+      if (reference.isSolved()) {
+        return reference;
+      }
+    }
+    return SymbolReference.unsolved(ResolvedReferenceTypeDeclaration.class);
+  }
+}
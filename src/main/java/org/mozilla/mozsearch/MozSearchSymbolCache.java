@@ -0,0 +1,203 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Persistent cache of type lookups in a library (a jar or the JDK).
+ *
+ * Each entry maps a canonical type name to the name in the library (e.g.
+ * the binary name in a jar), or to ABSENT if the library doesn't have the
+ * type. The cache file is read into memory when it's opened and written
+ * back when the run ends. It is tagged with a key such as the size and mtime of the jar,
+ * so a changed library invalidates its cache automatically.
+ *
+ * The types that a library doesn't have are the names of other libraries
+ * and of the sources, so callers open a cache per tree (see open()). Only
+ * the entries which were used in the run are written back, so the names of
+ * deleted types are dropped, and the cache is bounded: when it is full, new
+ * entries aren't kept.
+ */
+public class MozSearchSymbolCache {
+  public static final String ABSENT = "";
+  public static final int DEFAULT_MAX_ENTRIES = 256 * 1024;
+  private static final int MAGIC = 0x4d5a5343; // "MZSC"
+  private static final int VERSION = 1;
+  // Longest name or key read from a file, so that a broken file isn't
+  // read into a huge array.
+  private static final int MAX_STRING_BYTES = 64 * 1024;
+
+  private final Path mPath;
+  private final String mKey;
+  private final int mMaxEntries;
+  // Entries used or added in this run, which are written back.
+  private final ConcurrentHashMap<String, String> mEntries =
+      new ConcurrentHashMap<String, String>();
+  private final AtomicInteger mSize = new AtomicInteger();
+  // Entries of the cache file which aren't used in this run yet.
+  private final ConcurrentHashMap<String, String> mLoadedEntries =
+      new ConcurrentHashMap<String, String>();
+  private volatile boolean mDirty = false;
+
+  private MozSearchSymbolCache(final Path path, final String key, final int maxEntries) {
+    mPath = path;
+    mKey = key;
+    mMaxEntries = maxEntries;
+  }
+
+  /*
+   * Open the cache of a library.
+   *
+   * @Param cacheDir Directory to keep cache files.
+   * @Param name Identity of the library and of the tree which uses it, such
+   *             as the path of the jar and the source directory.
+   * @Param key Version of the library. If the cache file was written for
+   *            another version, it is discarded.
+   */
+  public static MozSearchSymbolCache open(final Path cacheDir, final String name, final String key)
+      throws IOException {
+    return open(cacheDir, name, key, DEFAULT_MAX_ENTRIES);
+  }
+
+  public static MozSearchSymbolCache open(
+      final Path cacheDir, final String name, final String key, final int maxEntries)
+      throws IOException {
+    Files.createDirectories(cacheDir);
+    final MozSearchSymbolCache cache =
+        new MozSearchSymbolCache(cacheDir.resolve(sha1(name) + ".symbols"), key, maxEntries);
+    cache.load();
+    return cache;
+  }
+
+  public static String getJarKey(final Path jar) throws IOException {
+    final BasicFileAttributes attrs = Files.readAttributes(jar, BasicFileAttributes.class);
+    return attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+  }
+
+  public static String getJdkKey() {
+    return System.getProperty("java.home") + ":" + System.getProperty("java.version");
+  }
+
+  static String sha1(final String text) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      final StringBuilder builder = new StringBuilder();
+      for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+        builder.append(String.format("%02x", b));
+      }
+      return builder.toString();
+    } catch (NoSuchAlgorithmException exception) {
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  private static String getString(final DataInputStream stream) throws IOException {
+    final int length = stream.readInt();
+    if (length < 0 || length > MAX_STRING_BYTES) {
+      throw new IOException("Bad string length: " + length);
+    }
+    final byte[] bytes = new byte[length];
+    stream.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void putString(final DataOutputStream stream, final String string)
+      throws IOException {
+    final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    stream.writeInt(bytes.length);
+    stream.write(bytes);
+  }
+
+  private void load() {
+    if (!Files.exists(mPath)) {
+      return;
+    }
+    try (DataInputStream stream =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(mPath)))) {
+      if (stream.readInt() != MAGIC || stream.readInt() != VERSION) {
+        return;
+      }
+      if (!getString(stream).equals(mKey)) {
+        // The library is changed.
+        mDirty = true;
+        return;
+      }
+      final int count = Math.min(stream.readInt(), mMaxEntries);
+      for (int i = 0; i < count; i++) {
+        final String name = getString(stream);
+        mLoadedEntries.put(name, getString(stream));
+      }
+    } catch (Exception exception) {
+      System.err.println("Ignoring broken symbol cache " + mPath + ": " + exception);
+      mLoadedEntries.clear();
+      mDirty = true;
+    }
+  }
+
+  /*
+   * @Return The cached value, ABSENT if the library doesn't have the type,
+   *         or null if the type isn't looked up yet.
+   */
+  public String get(final String name) {
+    final String value = mEntries.get(name);
+    if (value != null) {
+      return value;
+    }
+    final String loaded = mLoadedEntries.remove(name);
+    if (loaded != null && mEntries.putIfAbsent(name, loaded) == null) {
+      mSize.incrementAndGet();
+    }
+    return loaded;
+  }
+
+  public void put(final String name, final String value) {
+    if (mSize.get() >= mMaxEntries && !mEntries.containsKey(name)) {
+      return;
+    }
+    final String old = mEntries.put(name, value);
+    if (old == null) {
+      mSize.incrementAndGet();
+    }
+    if (!value.equals(old)) {
+      mDirty = true;
+    }
+  }
+
+  public void save() throws IOException {
+    // Entries which weren't used are dropped from the file.
+    if (!mDirty && mLoadedEntries.isEmpty()) {
+      return;
+    }
+    final Path tempPath = mPath.resolveSibling(mPath.getFileName() + ".tmp");
+    try (DataOutputStream stream =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+      stream.writeInt(MAGIC);
+      stream.writeInt(VERSION);
+      putString(stream, mKey);
+      final Map<String, String> entries = new TreeMap<String, String>(mEntries);
+      stream.writeInt(entries.size());
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        putString(stream, entry.getKey());
+        putString(stream, entry.getValue());
+      }
+    }
+    Files.move(
+        tempPath, mPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    mLoadedEntries.clear();
+    mDirty = false;
+  }
+}
@@ -0,0 +1,186 @@
+package org.mozilla.mozsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Index of the definitions and uses of every symbol of a run, which is
+ * built by MozSearchSymbolIndexBuilder while files are indexed.
+ *
+ * The index is memory-mapped, and lookup() finds a symbol by a binary
+ * search, without reading the analysis files. Layout, in big-endian:
+ *
+ *   MAGIC, VERSION, file count, symbol count, entry count, names size
+ *   files    length and UTF-8 bytes of each path, sorted
+ *   symbols  name offset, name length, first entry and entry count of
+ *            each symbol, sorted by name
+ *   names    UTF-8 bytes of symbol names
+ *   entries  file, line, column and kind of each entry, 13 bytes each,
+ *            sorted by file, line and column within a symbol
+ */
+public class MozSearchSymbolIndex implements Closeable {
+  static final byte[] MAGIC = {'M', 'Z', 'S', 'I'};
+  static final int VERSION = 1;
+  static final byte KIND_DEF = 0;
+  static final byte KIND_USE = 1;
+  private static final int SYMBOL_SIZE = 16;
+  private static final int ENTRY_SIZE = 13;
+
+  /*
+   * A definition or a use of a symbol.
+   */
+  public static class Occurrence {
+    private final String mPath;
+    private final int mLine;
+    private final int mColumn;
+    private final boolean mDefinition;
+
+    Occurrence(final String path, final int line, final int column, final boolean definition) {
+      mPath = path;
+      mLine = line;
+      mColumn = column;
+      mDefinition = definition;
+    }
+
+    /*
+     * @Return Path of the source file, relative to the source directory.
+     */
+    public String getPath() {
+      return mPath;
+    }
+
+    public int getLine() {
+      return mLine;
+    }
+
+    public int getColumn() {
+      return mColumn;
+    }
+
+    public boolean isDefinition() {
+      return mDefinition;
+    }
+
+    /*
+     * @Return The kind of the target record, "def" or "use".
+     */
+    public String getKind() {
+      return mDefinition ? "def" : "use";
+    }
+
+    @Override
+    public String toString() {
+      return mPath + ":" + mLine + ":" + mColumn + " " + getKind();
+    }
+  }
+
+  private final FileChannel mChannel;
+  private final MappedByteBuffer mBuffer;
+  private final String[] mFiles;
+  private final int mSymbolCount;
+  private final int mSymbolsOffset;
+  private final int mNamesOffset;
+  private final int mEntriesOffset;
+
+  public MozSearchSymbolIndex(final Path path) throws IOException {
+    mChannel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      if (mChannel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Symbol index is too large to map: " + path);
+      }
+      mBuffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size());
+      final byte[] magic = new byte[MAGIC.length];
+      mBuffer.get(magic);
+      if (!Arrays.equals(magic, MAGIC) || mBuffer.getInt() != VERSION) {
+        throw new IOException("Not a symbol index: " + path);
+      }
+      mFiles = new String[mBuffer.getInt()];
+      mSymbolCount = mBuffer.getInt();
+      final int entryCount = mBuffer.getInt();
+      final int namesSize = mBuffer.getInt();
+      for (int i = 0; i < mFiles.length; i++) {
+        final byte[] bytes = new byte[mBuffer.getInt()];
+        mBuffer.get(bytes);
+        mFiles[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+      mSymbolsOffset = mBuffer.position();
+      mNamesOffset = mSymbolsOffset + mSymbolCount * SYMBOL_SIZE;
+      mEntriesOffset = mNamesOffset + namesSize;
+      if ((long) mEntriesOffset + (long) entryCount * ENTRY_SIZE != mChannel.size()) {
+        throw new IOException("Truncated symbol index: " + path);
+      }
+    } catch (IOException | RuntimeException exception) {
+      mChannel.close();
+      throw exception;
+    }
+  }
+
+  public int getSymbolCount() {
+    return mSymbolCount;
+  }
+
+  private String getName(final int symbol) {
+    final int offset = mSymbolsOffset + symbol * SYMBOL_SIZE;
+    final byte[] bytes = new byte[mBuffer.getInt(offset + 4)];
+    final ByteBuffer name = mBuffer.duplicate();
+    name.position(mNamesOffset + mBuffer.getInt(offset));
+    name.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /*
+   * Find the definitions and uses of a symbol.
+   *
+   * @Param symbol Symbol as in the "sym" field of records, such as
+   *               "java#util#List#add".
+   * @Return Occurrences in order of path, line and column, or an empty list
+   *         if the symbol isn't in the index.
+   */
+  public List<Occurrence> lookup(final String symbol) {
+    int low = 0;
+    int high = mSymbolCount - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int result = getName(middle).compareTo(symbol);
+      if (result < 0) {
+        low = middle + 1;
+      } else if (result > 0) {
+        high = middle - 1;
+      } else {
+        return getOccurrences(middle);
+      }
+    }
+    return new ArrayList<Occurrence>();
+  }
+
+  private List<Occurrence> getOccurrences(final int symbol) {
+    final int offset = mSymbolsOffset + symbol * SYMBOL_SIZE;
+    final int first = mBuffer.getInt(offset + 8);
+    final int count = mBuffer.getInt(offset + 12);
+    final ArrayList<Occurrence> occurrences = new ArrayList<Occurrence>(count);
+    for (int i = first; i < first + count; i++) {
+      final int entry = mEntriesOffset + i * ENTRY_SIZE;
+      occurrences.add(
+          new Occurrence(
+              mFiles[mBuffer.getInt(entry)],
+              mBuffer.getInt(entry + 4),
+              mBuffer.getInt(entry + 8),
+              mBuffer.get(entry + 12) == KIND_DEF));
+    }
+    return occurrences;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mChannel.close();
+  }
+}
@@ -0,0 +1,326 @@
+package org.mozilla.mozsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ * Builds a MozSearchSymbolIndex from the target records of a run.
+ *
+ * Workers collect the definitions and uses of a file in a FileSymbols, and
+ * add it when the file is written. Entries are kept in memory up to a
+ * limit, then sorted and spilled to temporary runs, which are merged into
+ * the index at the end. Files are ordered by path in the index, so the
+ * index doesn't depend on the order in which workers finish files.
+ */
+public class MozSearchSymbolIndexBuilder {
+  public static final int DEFAULT_MAX_ENTRIES = 1000000;
+  // Symbol names longer than this can't be spilled, and aren't indexed.
+  private static final int MAX_SYMBOL_LENGTH = 16 * 1024;
+
+  private static class Entry {
+    final String mSymbol;
+    final int mFile;
+    final int mLine;
+    final int mColumn;
+    final byte mKind;
+
+    Entry(final String symbol, final int file, final int line, final int column, final byte kind) {
+      mSymbol = symbol;
+      mFile = file;
+      mLine = line;
+      mColumn = column;
+      mKind = kind;
+    }
+  }
+
+  /*
+   * Definitions and uses of one file, collected by a single worker.
+   */
+  public static class FileSymbols {
+    private final String mPath;
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    FileSymbols(final String path) {
+      mPath = path;
+    }
+
+    public void add(final MozSearchAnalysisRecord record) {
+      if (record.isSource() || record.getKind() == null) {
+        return;
+      }
+      final String symbol = record.getSymbol();
+      if (symbol.length() > MAX_SYMBOL_LENGTH) {
+        return;
+      }
+      final byte kind =
+          "def".equals(record.getKind())
+              ? MozSearchSymbolIndex.KIND_DEF
+              : MozSearchSymbolIndex.KIND_USE;
+      mEntries.add(new Entry(symbol, -1, record.getLine(), record.getColumn(), kind));
+    }
+  }
+
+  private final Path mIndexPath;
+  private final int mMaxEntries;
+  private final ArrayList<String> mFiles = new ArrayList<String>();
+  private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+  private final ArrayList<Path> mRuns = new ArrayList<Path>();
+  private final Comparator<Entry> mOrder =
+      new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry a, final Entry b) {
+          int result = a.mSymbol.compareTo(b.mSymbol);
+          if (result == 0) {
+            result = mFiles.get(a.mFile).compareTo(mFiles.get(b.mFile));
+          }
+          if (result == 0) {
+            result = Integer.compare(a.mLine, b.mLine);
+          }
+          if (result == 0) {
+            result = Integer.compare(a.mColumn, b.mColumn);
+          }
+          if (result == 0) {
+            result = Byte.compare(a.mKind, b.mKind);
+          }
+          return result;
+        }
+      };
+
+  public MozSearchSymbolIndexBuilder(final Path indexPath) {
+    this(indexPath, DEFAULT_MAX_ENTRIES);
+  }
+
+  /*
+   * @Param maxEntries Number of entries to keep in memory before spilling
+   *                   them to a temporary run next to the index.
+   */
+  public MozSearchSymbolIndexBuilder(final Path indexPath, final int maxEntries) {
+    mIndexPath = indexPath.toAbsolutePath();
+    mMaxEntries = maxEntries;
+  }
+
+  /*
+   * @Param path Path of the source file, relative to the source directory.
+   */
+  public FileSymbols newFile(final String path) {
+    return new FileSymbols(path);
+  }
+
+  /*
+   * Add the entries of a file which was written successfully.
+   */
+  public synchronized void add(final FileSymbols symbols) throws IOException {
+    final int file = mFiles.size();
+    mFiles.add(symbols.mPath);
+    for (Entry entry : symbols.mEntries) {
+      mEntries.add(new Entry(entry.mSymbol, file, entry.mLine, entry.mColumn, entry.mKind));
+      if (mEntries.size() >= mMaxEntries) {
+        spill();
+      }
+    }
+  }
+
+  private void spill() throws IOException {
+    Collections.sort(mEntries, mOrder);
+    Files.createDirectories(mIndexPath.getParent());
+    final Path run =
+        Files.createTempFile(mIndexPath.getParent(), "." + mIndexPath.getFileName(), ".run");
+    mRuns.add(run);
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+      out.writeInt(mEntries.size());
+      for (Entry entry : mEntries) {
+        out.writeUTF(entry.mSymbol);
+        out.writeInt(entry.mFile);
+        out.writeInt(entry.mLine);
+        out.writeInt(entry.mColumn);
+        out.writeByte(entry.mKind);
+      }
+    }
+    mEntries.clear();
+  }
+
+  // Sorted entries of a spilled run or of the memory, for the merge.
+  private static class Run {
+    private final DataInputStream mInput;
+    private final List<Entry> mMemory;
+    private int mRemaining;
+    Entry mHead;
+
+    Run(final DataInputStream input) throws IOException {
+      mInput = input;
+      mMemory = null;
+      mRemaining = input.readInt();
+    }
+
+    Run(final List<Entry> memory) {
+      mInput = null;
+      mMemory = memory;
+      mRemaining = memory.size();
+    }
+
+    boolean next() throws IOException {
+      if (mRemaining == 0) {
+        mHead = null;
+        return false;
+      }
+      if (mMemory != null) {
+        mHead = mMemory.get(mMemory.size() - mRemaining);
+      } else {
+        mHead =
+            new Entry(
+                mInput.readUTF(),
+                mInput.readInt(),
+                mInput.readInt(),
+                mInput.readInt(),
+                mInput.readByte());
+      }
+      mRemaining--;
+      return true;
+    }
+
+    void close() throws IOException {
+      if (mInput != null) {
+        mInput.close();
+      }
+    }
+  }
+
+  /*
+   * Merge all entries and write the index. See MozSearchSymbolIndex for the
+   * layout.
+   */
+  public synchronized void write() throws IOException {
+    Collections.sort(mEntries, mOrder);
+
+    // Files are numbered in the order of their paths.
+    final Integer[] byPath = new Integer[mFiles.size()];
+    for (int i = 0; i < byPath.length; i++) {
+      byPath[i] = i;
+    }
+    Arrays.sort(byPath, (a, b) -> mFiles.get(a).compareTo(mFiles.get(b)));
+    final int[] fileNumbers = new int[byPath.length];
+    for (int i = 0; i < byPath.length; i++) {
+      fileNumbers[byPath[i]] = i;
+    }
+
+    Files.createDirectories(mIndexPath.getParent());
+    final String name = "." + mIndexPath.getFileName();
+    final Path symbolsPath = Files.createTempFile(mIndexPath.getParent(), name, ".symbols");
+    final Path namesPath = Files.createTempFile(mIndexPath.getParent(), name, ".names");
+    final Path entriesPath = Files.createTempFile(mIndexPath.getParent(), name, ".entries");
+    final Path tempPath = mIndexPath.resolveSibling(name + ".tmp");
+    final ArrayList<Run> runs = new ArrayList<Run>();
+    try {
+      final PriorityQueue<Run> queue =
+          new PriorityQueue<Run>(
+              Math.max(1, mRuns.size() + 1), (a, b) -> mOrder.compare(a.mHead, b.mHead));
+      runs.add(new Run(mEntries));
+      for (Path run : mRuns) {
+        runs.add(
+            new Run(new DataInputStream(new BufferedInputStream(Files.newInputStream(run)))));
+      }
+      for (Run run : runs) {
+        if (run.next()) {
+          queue.add(run);
+        }
+      }
+
+      int symbolCount = 0;
+      int entryCount = 0;
+      long namesSize = 0;
+      try (DataOutputStream symbols = open(symbolsPath);
+          DataOutputStream names = open(namesPath);
+          DataOutputStream entries = open(entriesPath)) {
+        String symbol = null;
+        int first = 0;
+        while (!queue.isEmpty()) {
+          final Run run = queue.poll();
+          final Entry entry = run.mHead;
+          if (!entry.mSymbol.equals(symbol)) {
+            if (symbol != null) {
+              symbols.writeInt(entryCount - first);
+            }
+            final byte[] bytes = entry.mSymbol.getBytes(StandardCharsets.UTF_8);
+            symbols.writeInt((int) namesSize);
+            symbols.writeInt(bytes.length);
+            symbols.writeInt(entryCount);
+            names.write(bytes);
+            namesSize += bytes.length;
+            if (namesSize > Integer.MAX_VALUE) {
+              throw new IOException("Too many symbols for a symbol index");
+            }
+            symbol = entry.mSymbol;
+            first = entryCount;
+            symbolCount++;
+          }
+          entries.writeInt(fileNumbers[entry.mFile]);
+          entries.writeInt(entry.mLine);
+          entries.writeInt(entry.mColumn);
+          entries.writeByte(entry.mKind);
+          entryCount++;
+          if (run.next()) {
+            queue.add(run);
+          }
+        }
+        if (symbol != null) {
+          symbols.writeInt(entryCount - first);
+        }
+      }
+
+      try (DataOutputStream out = open(tempPath)) {
+        out.write(MozSearchSymbolIndex.MAGIC);
+        out.writeInt(MozSearchSymbolIndex.VERSION);
+        out.writeInt(mFiles.size());
+        out.writeInt(symbolCount);
+        out.writeInt(entryCount);
+        out.writeInt((int) namesSize);
+        for (Integer file : byPath) {
+          final byte[] bytes = mFiles.get(file).getBytes(StandardCharsets.UTF_8);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        Files.copy(symbolsPath, out);
+        Files.copy(namesPath, out);
+        Files.copy(entriesPath, out);
+      }
+      if (Files.size(tempPath) > Integer.MAX_VALUE) {
+        throw new IOException("Symbol index is too large to map");
+      }
+      Files.move(
+          tempPath,
+          mIndexPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      for (Run run : runs) {
+        run.close();
+      }
+      for (Path run : mRuns) {
+        Files.deleteIfExists(run);
+      }
+      mRuns.clear();
+      Files.deleteIfExists(symbolsPath);
+      Files.deleteIfExists(namesPath);
+      Files.deleteIfExists(entriesPath);
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  private static DataOutputStream open(final Path path) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+  }
+}
@@ -0,0 +1,99 @@
+package org.mozilla.mozsearch;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Table of canonical symbols, for a run or for a job of the server.
+ *
+ * The same qualified names (e.g. java.lang.String) are output by every
+ * file, so the "sym" value and the escaped JSON forms of a (scope,
+ * identifier) pair are built once and shared by all workers. Lookups of
+ * known symbols don't allocate.
+ *
+ * The table has a fixed number of slots, and each symbol has one slot by
+ * its hash. A new symbol replaces the one in its slot, so the table keeps
+ * the recent symbols once it's full, and workers never wait for each
+ * other. A replaced symbol is only built again when it's used again.
+ */
+public class MozSearchSymbolInterner {
+  public static final int DEFAULT_MAX_SYMBOLS = 256 * 1024;
+
+  /*
+   * A symbol with its precomputed output forms. Instances are immutable.
+   */
+  public static class Symbol {
+    private final String mScope;
+    private final String mIdentifier;
+    private final String mSymbol;
+    private final String mQuotedSymbol;
+    private final String mEscapedName;
+
+    Symbol(final String scope, final String identifier) {
+      mScope = scope;
+      mIdentifier = identifier;
+      mSymbol = (scope + identifier).replace('.', '#');
+      final StringBuilder builder = new StringBuilder();
+      MozSearchAnalysisRecord.quoteSymbol(builder, scope, identifier);
+      mQuotedSymbol = builder.toString();
+      builder.setLength(0);
+      MozSearchAnalysisRecord.escapeName(builder, scope, identifier);
+      mEscapedName = builder.toString();
+    }
+
+    public String getScope() {
+      return mScope;
+    }
+
+    public String getIdentifier() {
+      return mIdentifier;
+    }
+
+    /*
+     * @Return The "sym" value, such as "java#lang#String".
+     */
+    public String getSymbol() {
+      return mSymbol;
+    }
+
+    // The "sym" value as a quoted JSON string.
+    String getQuotedSymbol() {
+      return mQuotedSymbol;
+    }
+
+    // Scope and identifier escaped for a JSON string, without quotes.
+    String getEscapedName() {
+      return mEscapedName;
+    }
+  }
+
+  // Slots by the hash of the scope and the identifier. The number of slots
+  // is a power of two.
+  private final AtomicReferenceArray<Symbol> mSlots;
+
+  /*
+   * @Param maxSymbols Number of symbols to keep, rounded up to a power of
+   *                   two.
+   */
+  public MozSearchSymbolInterner(final int maxSymbols) {
+    if (maxSymbols <= 0 || maxSymbols > 1 << 30) {
+      throw new IllegalArgumentException("Bad number of symbols: " + maxSymbols);
+    }
+    mSlots = new AtomicReferenceArray<Symbol>(Integer.highestOneBit(maxSymbols * 2 - 1));
+  }
+
+  public Symbol get(final String scope, final String identifier) {
+    // String hashes are cached, so this doesn't scan the strings.
+    int hash = scope.hashCode() * 31 + identifier.hashCode();
+    hash ^= hash >>> 16;
+    final int slot = hash & (mSlots.length() - 1);
+    final Symbol symbol = mSlots.get(slot);
+    if (symbol != null
+        && symbol.mScope.equals(scope)
+        && symbol.mIdentifier.equals(identifier)) {
+      return symbol;
+    }
+    final Symbol added = new Symbol(scope, identifier);
+    mSlots.lazySet(slot, added);
+    return added;
+  }
+}
@@ -0,0 +1,612 @@
+package org.mozilla.mozsearch;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParseStart;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.Providers;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.symbolsolver.JavaSymbolSolver;
+import com.github.javaparser.symbolsolver.javaparser.Navigator;
+import com.github.javaparser.symbolsolver.javaparsermodel.JavaParserFacade;
+import com.github.javaparser.symbolsolver.model.resolution.TypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Project-wide registry of source roots and type solvers.
+ *
+ * Source roots are discovered once for the whole tree, then every worker
+ * thread builds one long-lived solver set from them and reuses it (and the
+ * caches of its source root solvers) for all directories. Solvers aren't
+ * thread safe, so they are never shared between workers. Class path jars are
+ * opened once and shared by all workers' solvers. Lookups in source roots
+ * only go to the roots which declare the top-level type (see
+ * MozSearchPackageIndex).
+ *
+ * Source files are read through a source cache shared by all workers, and
+ * each worker keeps the files it parsed recently, for both indexing and
+ * type lookups (see findType()).
+ */
+public class MozSearchTypeSolverRegistry implements Closeable {
+  private static final List<String> DEFAULT_ANDROID_APIS =
+      Arrays.asList("android-31", "android-30", "android-29", "android-28");
+  // Most total length of the sources of the files that a worker keeps
+  // parsed, and the approximate size of a parsed file (with its tokens and
+  // ranges) per character of its source.
+  private static final long MAX_UNIT_CACHE_CHARS = 16L * 1024 * 1024;
+  private static final long UNIT_BYTES_PER_CHAR = 200;
+  /*
+   * Files parsed by a worker, the least recently used one first. Each file
+   * is kept with the text it was parsed from, so that it's parsed again
+   * when the source cache has a different text, and with the types that
+   * were looked up in it, so that they are dropped with the file.
+   */
+  private static class UnitCache {
+    private static class Entry {
+      final String mText;
+      final ParseResult<CompilationUnit> mResult;
+      final HashMap<String, Optional<TypeDeclaration<?>>> mTypes =
+          new HashMap<String, Optional<TypeDeclaration<?>>>();
+
+      Entry(final String text, final ParseResult<CompilationUnit> result) {
+        mText = text;
+        mResult = result;
+      }
+    }
+
+    private final LinkedHashMap<Path, Entry> mEntries =
+        new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+    private long mChars = 0;
+
+    Entry get(final Path file, final String text) {
+      final Entry entry = mEntries.get(file);
+      if (entry == null || entry.mText != text) {
+        return null;
+      }
+      return entry;
+    }
+
+    Entry put(
+        final Path file,
+        final String text,
+        final ParseResult<CompilationUnit> result,
+        final long maxChars) {
+      final Entry entry = new Entry(text, result);
+      final Entry old = mEntries.put(file, entry);
+      if (old != null) {
+        mChars -= old.mText.length();
+      }
+      mChars += text.length();
+      final Iterator<Entry> iterator = mEntries.values().iterator();
+      // Keep the file just parsed even if it's over the limit alone.
+      while (mChars > maxChars && mEntries.size() > 1) {
+        mChars -= iterator.next().mText.length();
+        iterator.remove();
+      }
+      return entry;
+    }
+  }
+
+  // JavaParserFacade keeps a facade per solver in a static map, and each
+  // facade keeps the types it resolved for nodes of every file. The map can
+  // only be cleared all at once, which would drop the caches of the other
+  // workers in the middle of their files, so releaseFile() removes the
+  // facades of one worker from it. JavaParser has no API for that, so the
+  // map is read by reflection.
+  private final Map<TypeSolver, ?> mFacades;
+  private final Path mSourceDir;
+  private final LinkedHashSet<Path> mRoots = new LinkedHashSet<Path>();
+  // Roots of the packages declared by the files, without the directories
+  // of the files, which are roots too.
+  private final LinkedHashSet<Path> mPackageRoots = new LinkedHashSet<Path>();
+  private volatile MozSearchPackageIndex mPackageIndex =
+      new MozSearchPackageIndex(
+          mRoots, Collections.<Path, List<String>>emptyMap(), this::readSource);
+  private final ArrayList<MozSearchJarIndex> mJars = new ArrayList<MozSearchJarIndex>();
+  private Path mCacheDir;
+  private MozSearchSymbolCache mJdkCache;
+  private long mFileSteps = MozSearchResolutionBudget.DEFAULT_FILE_STEPS;
+  private long mCallSteps = MozSearchResolutionBudget.DEFAULT_CALL_STEPS;
+  private final ThreadLocal<MozSearchResolutionBudget> mBudgets =
+      ThreadLocal.withInitial(
+          () -> {
+            final MozSearchResolutionBudget budget = new MozSearchResolutionBudget();
+            budget.setLimits(mFileSteps, mCallSteps);
+            return budget;
+          });
+  // Parsers of workers, with the number of roots that their solvers know.
+  private final ThreadLocal<JavaParser> mParsers = new ThreadLocal<JavaParser>();
+  private final ThreadLocal<Integer> mParserRootCounts = new ThreadLocal<Integer>();
+  private final ThreadLocal<TypeSolver> mSolvers = new ThreadLocal<TypeSolver>();
+  // Directory of the file which each worker is indexing.
+  private final ThreadLocal<Path> mCurrentDirs = new ThreadLocal<Path>();
+  private MozSearchSourceCache mSources =
+      new MozSearchSourceCache(StandardCharsets.UTF_8, MozSearchSourceCache.DEFAULT_MAX_BYTES);
+  private final ThreadLocal<UnitCache> mUnits = ThreadLocal.withInitial(UnitCache::new);
+  private long mUnitCacheChars = getUnitCacheChars(1);
+  private final MozSearchUnresolvedTypeCache mUnresolvedTypes =
+      new MozSearchUnresolvedTypeCache(MozSearchUnresolvedTypeCache.DEFAULT_MAX_NAMES);
+  private final MozSearchMemberCache mMembers =
+      new MozSearchMemberCache(MozSearchMemberCache.DEFAULT_MAX_BYTES);
+  // Bumped by every invalidate(), and per root for the roots it invalidates.
+  private volatile long mGeneration = 0;
+  private final ConcurrentHashMap<Path, Long> mRootGenerations =
+      new ConcurrentHashMap<Path, Long>();
+
+  /*
+   * @Throws IllegalStateException If this version of JavaParser doesn't
+   *         keep the facades in a map which can be read.
+   */
+  public MozSearchTypeSolverRegistry(final Path sourceDir) {
+    mFacades = getFacades();
+    mSourceDir = sourceDir.toAbsolutePath();
+  }
+
+  /*
+   * Set the resolution budget of workers. This must be called before any
+   * worker gets its parser.
+   *
+   * @Param fileSteps Steps of type lookups for a file, or 0 for no limit.
+   * @Param callSteps Steps of type lookups for a resolve() call, or 0 for no
+   *                  limit.
+   */
+  public void setResolutionBudget(final long fileSteps, final long callSteps) {
+    mFileSteps = fileSteps;
+    mCallSteps = callSteps;
+  }
+
+  /*
+   * Set the total size of the source files whose text is kept for all
+   * workers. This must be called before any worker parses a file.
+   */
+  public void setSourceCacheSize(final long bytes) {
+    mSources = new MozSearchSourceCache(StandardCharsets.UTF_8, bytes);
+  }
+
+  /*
+   * Set the number of workers which parse files at the same time, so that
+   * the files they keep parsed take up to a quarter of the heap in total.
+   * This must be called before any worker parses a file.
+   */
+  public void setWorkerCount(final int count) {
+    mUnitCacheChars = getUnitCacheChars(count);
+  }
+
+  private static long getUnitCacheChars(final int workers) {
+    final long chars = Runtime.getRuntime().maxMemory() / 4 / UNIT_BYTES_PER_CHAR / workers;
+    return Math.min(MAX_UNIT_CACHE_CHARS, chars);
+  }
+
+  /*
+   * Find android.jar in ANDROID_SDK_ROOT.
+   *
+   * @Param apis API levels (e.g. "31" or "android-31") to look for, in order
+   *             of preference. If empty, the latest known levels are used.
+   * @Return The first existing android.jar, or null.
+   */
+  public static Path findAndroidJar(final List<String> apis) {
+    final String sdkroot = System.getenv("ANDROID_SDK_ROOT");
+    if (sdkroot == null || sdkroot.length() == 0) {
+      return null;
+    }
+    for (String api : apis.isEmpty() ? DEFAULT_ANDROID_APIS : apis) {
+      final String platform = api.startsWith("android-") ? api : "android-" + api;
+      final Path sdkrootPath = Paths.get(sdkroot, "platforms", platform, "android.jar");
+      if (Files.exists(sdkrootPath)) {
+        return sdkrootPath;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Keep lookup results of the JDK and jar files in this directory, so that
+   * later runs don't have to look up these types again. This has to be
+   * called before adding jars.
+   *
+   * The results are kept per source directory, since the types that a
+   * library is asked for and doesn't have are the types of the tree.
+   */
+  public void setCacheDir(final Path cacheDir) throws IOException {
+    mCacheDir = cacheDir;
+    mJdkCache =
+        MozSearchSymbolCache.open(
+            cacheDir, getSymbolCacheName("jdk"), MozSearchSymbolCache.getJdkKey());
+  }
+
+  private String getSymbolCacheName(final String library) {
+    return library + " " + mSourceDir.toAbsolutePath();
+  }
+
+  /*
+   * Add a jar file to resolve symbols. This has to be called before any
+   * worker asks for a parser.
+   */
+  public void addJar(final Path jar) throws IOException {
+    final MozSearchJarIndex index = new MozSearchJarIndex(jar);
+    if (mCacheDir != null) {
+      index.setSymbolCache(
+          MozSearchSymbolCache.open(
+              mCacheDir,
+              getSymbolCacheName(index.getJarPath().toString()),
+              MozSearchSymbolCache.getJarKey(index.getJarPath())));
+    }
+    mJars.add(index);
+  }
+
+  /*
+   * Find a type declared in a file, parsed with the parser of the current
+   * worker thread.
+   *
+   * The text of the file comes from the shared source cache, and the parsed
+   * file is kept by the worker, so the file isn't parsed again when the
+   * worker's solvers look up other types declared in it, or when it's
+   * indexed after a lookup. Files with syntax errors are searched too, as
+   * far as they were parsed.
+   *
+   * The result is kept with the parsed file, and is dropped when the worker
+   * drops the file, so repeated lookups don't search the file again and
+   * don't keep it in memory.
+   *
+   * @Param typeName Name of the type relative to the package, such as A.B
+   * for the type B nested in the top-level type A.
+   * @Return The declaration, or empty if the file doesn't declare the type.
+   */
+  Optional<TypeDeclaration<?>> findType(final Path file, final String typeName)
+      throws IOException {
+    final UnitCache.Entry entry = getUnit(file, readSource(file));
+    Optional<TypeDeclaration<?>> declaration = entry.mTypes.get(typeName);
+    if (declaration == null) {
+      declaration =
+          entry.mResult.getResult().isPresent()
+              ? Navigator.findType(entry.mResult.getResult().get(), typeName)
+              : Optional.empty();
+      entry.mTypes.put(typeName, declaration);
+    }
+    return declaration;
+  }
+
+  private UnitCache.Entry getUnit(final Path file, final String text) {
+    final JavaParser parser = getParser();
+    final Path key = file.toAbsolutePath();
+    final UnitCache units = mUnits.get();
+    UnitCache.Entry entry = units.get(key, text);
+    if (entry == null) {
+      final ParseResult<CompilationUnit> result =
+          parser.parse(ParseStart.COMPILATION_UNIT, Providers.provider(text));
+      if (result.getResult().isPresent()) {
+        result.getResult().get().setStorage(key, StandardCharsets.UTF_8);
+      }
+      entry = units.put(key, text, result, mUnitCacheChars);
+    }
+    return entry;
+  }
+
+  /*
+   * Read the text of a file through the shared source cache. This can be
+   * called from any thread.
+   */
+  public String readSource(final Path file) throws IOException {
+    return mSources.read(file.toAbsolutePath());
+  }
+
+  /*
+   * Same as readSource(), with the attributes of the file that the text was
+   * read from.
+   */
+  public MozSearchSourceCache.Source readSourceFile(final Path file) throws IOException {
+    return mSources.readSource(file.toAbsolutePath());
+  }
+
+  /*
+   * Parse a file for indexing with the parser of the current worker thread.
+   *
+   * @Throws ParseProblemException if the file has syntax errors.
+   */
+  public CompilationUnit parse(final Path file) throws IOException, ParseProblemException {
+    return parse(file, readSource(file));
+  }
+
+  /*
+   * Parse the text of a file, which was read with readSource(), for
+   * indexing with the parser of the current worker thread. The file is the
+   * one that the worker resolves until releaseFile() (see getCurrentDir()).
+   *
+   * @Throws ParseProblemException if the file has syntax errors.
+   */
+  public CompilationUnit parse(final Path file, final String text) throws ParseProblemException {
+    final ParseResult<CompilationUnit> result = getUnit(file, text).mResult;
+    // After getUnit(), which may release the previous file with its solvers.
+    mCurrentDirs.set(file.toAbsolutePath().getParent());
+    if (!result.isSuccessful()) {
+      throw new ParseProblemException(result.getProblems());
+    }
+    return result.getResult().get();
+  }
+
+  /*
+   * Find all source roots under the source directory.
+   *
+   * This has to be called before any worker asks for a parser.
+   */
+  public void discover() throws IOException {
+    final LinkedHashMap<Path, List<String>> files = new LinkedHashMap<Path, List<String>>();
+    Files.walkFileTree(
+        mSourceDir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (MozSearchPathFilter.isVcsDirectory(dir)) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (file.toString().endsWith(".java")) {
+              addFile(file, files);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exception) {
+            System.err.println(exception);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    mPackageIndex = new MozSearchPackageIndex(mRoots, files, this::readSource);
+  }
+
+  private void addFile(final Path file, final Map<Path, List<String>> files) {
+    // Add root directory from package syntax. Only the header of the file is
+    // read here, it's parsed once when indexing it.
+    List<String> typeNames = Collections.<String>emptyList();
+    try {
+      final MozSearchPackageScanner.Declarations declarations =
+          MozSearchPackageScanner.scanHeader(file);
+      typeNames = declarations.getTypeNames();
+      final String packageName = declarations.getPackageName();
+      if (packageName != null) {
+        final Path rootDir = getRootPath(file, packageName);
+        if (rootDir != null) {
+          mRoots.add(rootDir);
+          mPackageRoots.add(rootDir);
+        }
+      }
+    } catch (IOException exception) {
+      System.err.println(exception);
+    }
+    mRoots.add(file.getParent());
+    files.put(file, typeNames);
+  }
+
+  /*
+   * Invalidate solver caches of changed, added or deleted source files.
+   *
+   * Solvers of the roots which contain the files drop their caches on their
+   * next lookup, and solvers of other roots are kept. When a file adds a new
+   * root, workers build new solver sets on their next getParser(). Missing
+   * types and resolved members are forgotten, since the files may declare
+   * them now. This must not be called while workers are indexing.
+   */
+  public void invalidate(final Collection<Path> files) {
+    final Map<Path, List<String>> indexedFiles = mPackageIndex.getFileTypes();
+    for (Path file : files) {
+      final Path absolute = file.toAbsolutePath();
+      if (absolute.toString().endsWith(".java") && Files.isRegularFile(absolute)) {
+        addFile(absolute, indexedFiles);
+      } else {
+        indexedFiles.remove(absolute);
+      }
+      for (Path root : mRoots) {
+        if (absolute.startsWith(root)) {
+          mRootGenerations.merge(root, 1L, Long::sum);
+        }
+      }
+    }
+    mSources.invalidate(files);
+    mPackageIndex = new MozSearchPackageIndex(mRoots, indexedFiles, this::readSource);
+    mUnresolvedTypes.clear();
+    mMembers.clear();
+    mGeneration++;
+  }
+
+  public long getGeneration() {
+    return mGeneration;
+  }
+
+  public long getRootGeneration(final Path root) {
+    return mRootGenerations.getOrDefault(root, 0L);
+  }
+
+  /*
+   * Returns the directory of the file which the current worker thread is
+   * indexing, where simple names can be types of its default package, or
+   * null.
+   */
+  public Path getCurrentDir() {
+    return mCurrentDirs.get();
+  }
+
+  /*
+   * Returns the index of the types of the source roots, shared by all
+   * workers.
+   */
+  public MozSearchPackageIndex getPackageIndex() {
+    return mPackageIndex;
+  }
+
+  public List<Path> getRoots() {
+    return Collections.unmodifiableList(new ArrayList<Path>(mRoots));
+  }
+
+  /*
+   * Returns the directories of the root packages which the files declare.
+   * Unlike getRoots(), this doesn't have the directory of every file.
+   */
+  public List<Path> getPackageRoots() {
+    return Collections.unmodifiableList(new ArrayList<Path>(mPackageRoots));
+  }
+
+  private Path getRootPath(final Path file, final String packageName) {
+    String path = packageName;
+    Path root = file.getParent();
+    String leafName = root.getFileName().toString();
+    root = root.getParent();
+
+    // Find root directory of this Java source package.
+    // If directory structure isn't Java package structure, we don't return
+    // root directory.
+    while (path.contains(".")) {
+      if (!leafName.equals(path.substring(path.lastIndexOf(".") + 1))) {
+        return null;
+      }
+
+      leafName = root.getFileName().toString();
+      root = root.getParent();
+      path = path.substring(0, path.lastIndexOf("."));
+    }
+
+    if (!root.startsWith(mSourceDir)) {
+      return null;
+    }
+    return root;
+  }
+
+  /*
+   * Returns the parser of the current worker thread.
+   *
+   * The parser resolves symbols through this thread's solver set, which is
+   * created on first use and kept until invalidate() adds new roots. Files
+   * parsed for the old solver set are dropped with it.
+   */
+  public JavaParser getParser() {
+    JavaParser parser = mParsers.get();
+    final Integer rootCount = mParserRootCounts.get();
+    if (parser == null || rootCount.intValue() != mRoots.size()) {
+      final ParserConfiguration configuration = new ParserConfiguration();
+      mParserRootCounts.set(mRoots.size());
+      releaseFile();
+      final TypeSolver solver = createTypeSolver();
+      mSolvers.set(solver);
+      configuration.setSymbolResolver(new JavaSymbolSolver(solver));
+      parser = new JavaParser(configuration);
+      mParsers.set(parser);
+      mUnits.remove();
+    }
+    return parser;
+  }
+
+  /*
+   * Drop what the solvers of the current worker thread learned about the
+   * nodes of the files it visited.
+   *
+   * The facades of the solvers keep the resolved type of every expression
+   * they were asked about, which would keep the trees of all files a worker
+   * visited in memory, and would make resolving a file cheaper on a worker
+   * which visited related files before. Called after each file.
+   */
+  public void releaseFile() {
+    mCurrentDirs.remove();
+    final TypeSolver root = mSolvers.get();
+    if (root == null) {
+      return;
+    }
+    // JavaParserFacade.get() changes the map under the lock of the class.
+    synchronized (JavaParserFacade.class) {
+      mFacades.keySet().removeIf(solver -> solver.getRoot() == root);
+    }
+  }
+
+  // Without the map, the facades would keep every file visited, and
+  // resolution would depend on the files a worker visited before, so it's
+  // an error rather than a slower run.
+  @SuppressWarnings("unchecked")
+  private static Map<TypeSolver, ?> getFacades() {
+    final Object facades;
+    try {
+      final Field field = JavaParserFacade.class.getDeclaredField("instances");
+      field.setAccessible(true);
+      facades = field.get(null);
+    } catch (ReflectiveOperationException | RuntimeException exception) {
+      throw new IllegalStateException("Can't read JavaParserFacade.instances", exception);
+    }
+    if (!(facades instanceof Map)) {
+      throw new IllegalStateException("JavaParserFacade.instances isn't a map");
+    }
+    return (Map<TypeSolver, ?>) facades;
+  }
+
+  /*
+   * Returns the resolution budget of the current worker thread, which is
+   * counted by the solvers of getParser().
+   */
+  public MozSearchResolutionBudget getBudget() {
+    return mBudgets.get();
+  }
+
+  /*
+   * Returns the types which no solver has, shared by all workers.
+   */
+  public MozSearchUnresolvedTypeCache getUnresolvedTypes() {
+    return mUnresolvedTypes;
+  }
+
+  /*
+   * Returns the resolved members, shared by all workers.
+   */
+  public MozSearchMemberCache getMemberCache() {
+    return mMembers;
+  }
+
+  private CombinedTypeSolver createTypeSolver() {
+    final CombinedTypeSolver solver = new MozSearchBudgetTypeSolver(getBudget(), mUnresolvedTypes);
+    if (mJdkCache != null) {
+      solver.add(new MozSearchCachingTypeSolver(new ReflectionTypeSolver(), mJdkCache));
+    } else {
+      solver.add(new ReflectionTypeSolver());
+    }
+    solver.add(new MozSearchSourceRoutingTypeSolver(this));
+    if (!mJars.isEmpty()) {
+      solver.add(new MozSearchJarTypeSolver(mJars));
+    }
+    return solver;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mJdkCache != null) {
+      mJdkCache.save();
+    }
+    for (MozSearchJarIndex jar : mJars) {
+      jar.close();
+    }
+  }
+}
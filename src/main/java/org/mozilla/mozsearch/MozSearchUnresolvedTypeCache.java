@@ -0,0 +1,75 @@
+package org.mozilla.mozsearch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONObject;
+
+/*
+ * Run-wide set of qualified type names which no type solver has.
+ *
+ * Resolving a simple name tries a qualified name for every import, the
+ * package and java.lang, and a missing type (e.g. a generated class which
+ * wasn't built) is tried again on every use in every file. A qualified name
+ * doesn't depend on the scope of the use, so once all solvers failed to
+ * find it, later lookups by any worker are answered from this set.
+ *
+ * Each name has the steps that the solvers took to fail to find it, so
+ * that a hit can be charged the same steps as the lookup it replaces.
+ *
+ * The set is bounded: when it is full, new names aren't kept.
+ */
+public class MozSearchUnresolvedTypeCache {
+  public static final int DEFAULT_MAX_NAMES = 256 * 1024;
+
+  private final int mMaxNames;
+  private final ConcurrentHashMap<String, Long> mNames = new ConcurrentHashMap<String, Long>();
+  private final AtomicInteger mSize = new AtomicInteger();
+  private final LongAdder mHits = new LongAdder();
+  private final LongAdder mMisses = new LongAdder();
+
+  public MozSearchUnresolvedTypeCache(final int maxNames) {
+    mMaxNames = maxNames;
+  }
+
+  /*
+   * @Return The steps of the failed lookup of the type, or -1 if the type
+   *         isn't known to be missing.
+   */
+  public long getSteps(final String name) {
+    final Long steps = mNames.get(name);
+    if (steps != null) {
+      mHits.increment();
+      return steps.longValue();
+    }
+    mMisses.increment();
+    return -1;
+  }
+
+  /*
+   * @Param steps Steps of the failed lookup of the type.
+   */
+  public void add(final String name, final long steps) {
+    if (mSize.get() >= mMaxNames) {
+      return;
+    }
+    if (mNames.putIfAbsent(name, steps) == null) {
+      mSize.incrementAndGet();
+    }
+  }
+
+  /*
+   * Forget all names, when sources which may declare them changed.
+   */
+  public void clear() {
+    mNames.clear();
+    mSize.set(0);
+  }
+
+  public JSONObject toJSON() {
+    return new JSONObject()
+        .put("names", mSize.get())
+        .put("hits", mHits.sum())
+        .put("misses", mMisses.sum());
+  }
+}
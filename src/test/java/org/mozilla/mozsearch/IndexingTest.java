@@ -1,13 +1,41 @@
 package org.mozilla.mozsearch;
 
+import com.github.javaparser.ast.CompilationUnit;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.json.JSONObject;
 
 public class IndexingTest extends TestCase {
+  // Set to true to run the slow tests too (see integrationTest in
+  // build.gradle).
+  private static final String INTEGRATION_PROPERTY = "mozsearch.integration";
+
+  // Temporary files and directories of the test, deleted by tearDown().
+  private final ArrayList<Path> mTempPaths = new ArrayList<Path>();
+
   /**
    * Create the test case
    *
@@ -22,33 +50,539 @@ public class IndexingTest extends TestCase {
     return new TestSuite(IndexingTest.class);
   }
 
+  @Override
+  protected void tearDown() throws Exception {
+    for (Path path : mTempPaths) {
+      if (Files.exists(path)) {
+        deleteTree(path);
+      }
+    }
+    mTempPaths.clear();
+    super.tearDown();
+  }
+
   public void testIndexing() throws IOException {
+    final Path sourceDir = Paths.get("./src/test/resources/data");
+    final Path resultDir = Paths.get("./src/test/resources/result");
+
+    // The output doesn't depend on the number of workers.
+    for (int count : new int[] {1, 4}) {
+      final Path outputDir = createTempDir("mozsearch-output");
+      final MozSearchJavaIndexer indexer = new MozSearchJavaIndexer(sourceDir, outputDir);
+      indexer.setThreadPoolCount(count);
+      assertTrue(indexer.outputIndexes());
+      assertSameResults(resultDir, outputDir, "");
+    }
+
+    // Compressed and binary outputs decode to the same records.
+    for (String suffix : Arrays.asList(".gz", ".bin")) {
+      final Path outputDir = createTempDir("mozsearch-output");
+      final MozSearchJavaIndexer indexer = new MozSearchJavaIndexer(sourceDir, outputDir);
+      indexer.setCompress(suffix.equals(".gz"));
+      indexer.setBinary(suffix.equals(".bin"));
+      assertTrue(indexer.outputIndexes());
+      assertSameResults(resultDir, outputDir, suffix);
+    }
+  }
+
+  public void testBudgetIndexing() throws IOException {
+    final Path sequentialDir = createTempDir("mozsearch-sequential");
+    final Path parallelDir = createTempDir("mozsearch-parallel");
+
+    // With a budget this tight, files run out of steps, so the output shows
+    // whether a file costs the same steps on any worker, whatever the
+    // worker indexed before.
+    MozSearchJavaIndexer indexer =
+        new MozSearchJavaIndexer(Paths.get("./src/test/resources/data"), sequentialDir);
+    indexer.setThreadPoolCount(1);
+    indexer.setResolutionBudget(200, 50);
+    indexer.outputIndexes();
+
+    indexer = new MozSearchJavaIndexer(Paths.get("./src/test/resources/data"), parallelDir);
+    indexer.setThreadPoolCount(4);
+    indexer.setResolutionBudget(200, 50);
+    indexer.outputIndexes();
+
+    assertSameFiles(sequentialDir, parallelDir);
+  }
+
+  public void testIncrementalIndexing() throws IOException {
+    final Path sourceDir = createTempDir("mozsearch-source");
+    final Path outputDir = createTempDir("mozsearch-output");
+    Files.copy(
+        Paths.get("./src/test/resources/data/HelloWorld.java"),
+        sourceDir.resolve("HelloWorld.java"));
+    Files.copy(
+        Paths.get("./src/test/resources/data/EnumClass.java"), sourceDir.resolve("EnumClass.java"));
+
+    MozSearchJavaIndexer indexer = new MozSearchJavaIndexer(sourceDir, outputDir);
+    indexer.setIncremental(true);
+    indexer.outputIndexes();
+    assertTrue(Files.exists(outputDir.resolve(MozSearchIndexManifest.FILE_NAME)));
+    assertTrue(Files.exists(outputDir.resolve("HelloWorld.java")));
+    assertTrue(Files.exists(outputDir.resolve("EnumClass.java")));
+
+    // Unchanged file isn't written again.
+    final FileTime marker = FileTime.fromMillis(0);
+    Files.setLastModifiedTime(outputDir.resolve("HelloWorld.java"), marker);
+    Files.setLastModifiedTime(outputDir.resolve("EnumClass.java"), marker);
+    indexer = new MozSearchJavaIndexer(sourceDir, outputDir);
+    indexer.setIncremental(true);
+    indexer.outputIndexes();
+    assertTrue(Files.getLastModifiedTime(outputDir.resolve("HelloWorld.java")).equals(marker));
+    assertTrue(Files.getLastModifiedTime(outputDir.resolve("EnumClass.java")).equals(marker));
+
+    // Changed file is indexed again, and output of deleted file is removed.
+    Files.write(sourceDir.resolve("EnumClass.java"), "\n".getBytes(), StandardOpenOption.APPEND);
+    Files.delete(sourceDir.resolve("HelloWorld.java"));
+
+    indexer = new MozSearchJavaIndexer(sourceDir, outputDir);
+    indexer.setIncremental(true);
+    indexer.outputIndexes();
+    assertFalse(Files.exists(outputDir.resolve("HelloWorld.java")));
+    assertFalse(Files.getLastModifiedTime(outputDir.resolve("EnumClass.java")).equals(marker));
+  }
+
+  public void testReport() throws IOException {
+    final Path outputDir = createTempDir("mozsearch-output");
+    final Path reportPath = outputDir.resolve("report.json");
+
+    MozSearchJavaIndexer indexer =
+        new MozSearchJavaIndexer(Paths.get("./src/test/resources/data/"), outputDir);
+    indexer.setReportPath(reportPath);
+    assertTrue(indexer.outputIndexes());
+
+    final JSONObject report =
+        new JSONObject(new String(Files.readAllBytes(reportPath), StandardCharsets.UTF_8));
+    assertEquals(5, report.getInt("files"));
+    assertEquals(0, report.getInt("failed_files"));
+    assertEquals(5, report.getJSONArray("slowest_files").length());
+    assertTrue(report.getJSONObject("resolve").has("MethodCallExpr"));
+    assertTrue(report.has("unresolved_symbols"));
+    assertTrue(report.getJSONObject("unresolved_type_cache").has("hits"));
+    assertTrue(report.getJSONObject("member_cache").has("hits"));
+    final JSONObject indexStage = report.getJSONArray("stages").getJSONObject(1);
+    assertEquals("index", indexStage.getString("name"));
+    assertEquals(5, indexStage.getInt("tasks"));
+    assertEquals(0, indexStage.getInt("failed_tasks"));
+
+    long records = 0;
+    try (DirectoryStream<Path> outputs = Files.newDirectoryStream(outputDir, "*.java")) {
+      for (Path output : outputs) {
+        records += Files.readAllLines(output).size();
+      }
+    }
+    assertEquals(records, report.getLong("records"));
+  }
+
+  public void testMemberCache() throws IOException {
+    final Path sourceDir = createTempDir("mozsearch-source");
+    final Path outputDir = createTempDir("mozsearch-output");
+    final Path file = sourceDir.resolve("Calls.java");
+    Files.write(
+        file,
+        ("import java.util.ArrayList;\n"
+                + "import java.util.List;\n"
+                + "public class Calls {\n"
+                + "  int run(List<String> list) {\n"
+                + "    list.forEach(s -> System.out.println(s));\n"
+                + "    new ArrayList<String>(list).removeIf(s -> s.isEmpty());\n"
+                + "    System.out.println(java.lang.Math.max(1, list.size()));\n"
+                + "    return java.lang.Integer.MAX_VALUE + Math.abs(list.size());\n"
+                + "  }\n"
+                + "}\n")
+            .getBytes(StandardCharsets.UTF_8));
+
+    // Accesses whose key can't be computed, like calls through a qualified
+    // type name, are resolved as without the cache. The cache is filled by
+    // the second visit, and used by the third.
+    final MozSearchJavaIndexer indexer = new MozSearchJavaIndexer(sourceDir, outputDir);
+    try (MozSearchTypeSolverRegistry registry = indexer.openRegistry()) {
+      final CompilationUnit unit = registry.parse(file);
+      final MozSearchMemberCache cache = new MozSearchMemberCache(1024 * 1024);
+      for (int i = 0; i < 3; i++) {
+        try (MozSearchAnalysisWriter writer =
+            new MozSearchAnalysisWriter(outputDir.resolve("Calls.java." + i))) {
+          final MozSearchJSONOutputVisitor visitor = new MozSearchJSONOutputVisitor(writer);
+          visitor.setBudget(registry.getBudget());
+          if (i > 0) {
+            visitor.setMemberCache(cache);
+          }
+          unit.accept(visitor, null);
+          writer.commit();
+        }
+        registry.releaseFile();
+      }
+    }
+    final byte[] uncached = Files.readAllBytes(outputDir.resolve("Calls.java.0"));
+    assertTrue(Arrays.equals(uncached, Files.readAllBytes(outputDir.resolve("Calls.java.1"))));
+    assertTrue(Arrays.equals(uncached, Files.readAllBytes(outputDir.resolve("Calls.java.2"))));
+  }
+
+  public void testStageFailure() throws InterruptedException {
+    final MozSearchPipelineStage stage = new MozSearchPipelineStage("test", 2, 4);
+    stage.submit(() -> {});
+    stage.submit(
+        () -> {
+          throw new IllegalStateException("lost file");
+        });
+    stage.finish();
+    assertEquals(1, stage.getFailedTaskCount());
+  }
+
+  public void testIgnore() throws IOException {
+    final Path outputDir = createTempDir("mozsearch-output");
+
     MozSearchJavaIndexer indexer =
-        new MozSearchJavaIndexer(Paths.get("./src/test/resources/data"), Paths.get("/tmp"));
-    indexer.outputIndexes();
-    byte[] f1 = Files.readAllBytes(Paths.get("/tmp/HelloWorld.java"));
-    byte[] f2 = Files.readAllBytes(Paths.get("./src/test/resources/result/HelloWorld.java.out"));
-    assertTrue(f1.length == f2.length);
-    Files.delete(Paths.get("/tmp/HelloWorld.java"));
-
-    f1 = Files.readAllBytes(Paths.get("/tmp/InnerClass.java"));
-    f2 = Files.readAllBytes(Paths.get("./src/test/resources/result/InnerClass.java.out"));
-    assertTrue(f1.length == f2.length);
-    Files.delete(Paths.get("/tmp/InnerClass.java"));
-
-    f1 = Files.readAllBytes(Paths.get("/tmp/Generics.java"));
-    f2 = Files.readAllBytes(Paths.get("./src/test/resources/result/Generics.java.out"));
-    assertTrue(f1.length == f2.length);
-    Files.delete(Paths.get("/tmp/Generics.java"));
-
-    f1 = Files.readAllBytes(Paths.get("/tmp/EnumClass.java"));
-    f2 = Files.readAllBytes(Paths.get("./src/test/resources/result/EnumClass.java.out"));
-    assertTrue(f1.length == f2.length);
-    Files.delete(Paths.get("/tmp/EnumClass.java"));
-
-    f1 = Files.readAllBytes(Paths.get("/tmp/ExceptionTest.java"));
-    f2 = Files.readAllBytes(Paths.get("./src/test/resources/result/ExceptionTest.java.out"));
-    assertTrue(f1.length == f2.length);
-    Files.delete(Paths.get("/tmp/ExceptionTest.java"));
+        new MozSearchJavaIndexer(Paths.get("./src/test/resources/data/"), outputDir);
+    indexer.setIgnoreGlobs(Arrays.asList("Hello*.java", "Inner*"));
+    indexer.outputIndexes();
+
+    assertFalse(Files.exists(outputDir.resolve("HelloWorld.java")));
+    assertFalse(Files.exists(outputDir.resolve("InnerClass.java")));
+    assertTrue(Files.exists(outputDir.resolve("Generics.java")));
+  }
+
+  public void testShards() throws IOException {
+    final Path sourceDir = Paths.get("./src/test/resources/data/");
+    final Path mergedDir = createTempDir("mozsearch-merged");
+    final Path cacheDir = createTempDir("mozsearch-cache");
+    final ArrayList<Path> shardDirs = new ArrayList<Path>();
+    for (int i = 0; i < 2; i++) {
+      final Path shardDir = createTempDir("mozsearch-shard");
+      MozSearchJavaIndexer indexer = new MozSearchJavaIndexer(sourceDir, shardDir);
+      indexer.setShard(new MozSearchShard(i, 2, false));
+      indexer.setCacheDir(cacheDir);
+      indexer.outputIndexes();
+      assertTrue(Files.exists(shardDir.resolve(MozSearchShard.getManifestName(i, 2))));
+      shardDirs.add(shardDir);
+    }
+    // Shards keep their own timings.
+    try (DirectoryStream<Path> timings = Files.newDirectoryStream(cacheDir, "*.timings")) {
+      int count = 0;
+      for (Path path : timings) {
+        count++;
+      }
+      assertEquals(2, count);
+    }
+
+    MozSearchJavaIndexer indexer = new MozSearchJavaIndexer(sourceDir, mergedDir);
+    assertFalse(indexer.mergeShards(shardDirs.subList(0, 1)));
+    assertTrue(indexer.mergeShards(shardDirs));
+    assertTrue(Files.exists(mergedDir.resolve("HelloWorld.java")));
+    assertTrue(Files.exists(mergedDir.resolve("Generics.java")));
+  }
+
+  public void testShardPartition() throws IOException {
+    final Path sourceDir = createTempDir("mozsearch-source");
+    final Path a = Files.createDirectories(sourceDir.resolve("a")).resolve("A.java");
+    final Path b = Files.createDirectories(sourceDir.resolve("b")).resolve("B.java");
+    Files.write(a, "package a;\nclass A {}\n".getBytes(StandardCharsets.UTF_8));
+    Files.write(b, "package b;\nclass B {}\n".getBytes(StandardCharsets.UTF_8));
+    final MozSearchTypeSolverRegistry registry = new MozSearchTypeSolverRegistry(sourceDir);
+    registry.discover();
+
+    // Both packages are in the same root, so the files go to the same shard
+    // unless they are assigned by package directory.
+    final MozSearchShard byRoot = new MozSearchShard(0, 2, false);
+    byRoot.setRoots(sourceDir, registry.getPackageRoots());
+    assertEquals(byRoot.contains(a), byRoot.contains(b));
+    final MozSearchShard byPackage = new MozSearchShard(0, 2, true);
+    byPackage.setRoots(sourceDir, registry.getPackageRoots());
+    assertTrue(byPackage.contains(a) != byPackage.contains(b));
+
+    registry.close();
+  }
+
+  public void testServer() throws Exception {
+    final Path sourceDir = createTempDir("mozsearch-source");
+    final Path outputDir = createTempDir("mozsearch-output");
+    final Path file = sourceDir.resolve("HelloWorld.java");
+    Files.copy(Paths.get("./src/test/resources/data/HelloWorld.java"), file);
+
+    final Path serverFile = outputDir.resolve("server");
+    final MozSearchIndexServer server =
+        new MozSearchIndexServer(new MozSearchJavaIndexer(sourceDir, outputDir), serverFile);
+    assertEquals(
+        PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(serverFile));
+    final Thread thread =
+        new Thread(
+            () -> {
+              try {
+                server.serve();
+              } catch (IOException exception) {
+                exception.printStackTrace();
+              }
+            });
+    thread.start();
+
+    // Requests without the token are rejected.
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+      socket.getOutputStream().write("stop\n".getBytes(StandardCharsets.UTF_8));
+      final BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      assertEquals(MozSearchIndexServer.ERROR + " Bad token", reader.readLine());
+    }
+
+    final MozSearchIndexClient client = new MozSearchIndexClient(serverFile);
+    final Path outside = createTempFile("mozsearch-outside", ".java");
+    assertFalse(client.index(Arrays.asList(outside), System.out));
+
+    final ByteArrayOutputStream progress = new ByteArrayOutputStream();
+    assertTrue(client.index(Arrays.asList(sourceDir), new PrintStream(progress, true, "UTF-8")));
+    assertTrue(progress.toString("UTF-8").contains("indexed " + file));
+    assertTrue(Files.exists(outputDir.resolve("HelloWorld.java")));
+
+    Files.delete(file);
+    assertTrue(client.index(Arrays.asList(file), System.out));
+    assertFalse(Files.exists(outputDir.resolve("HelloWorld.java")));
+
+    assertTrue(client.stop(System.out));
+    thread.join();
+    server.close();
+    assertFalse(Files.exists(serverFile));
+  }
+
+  public void testCompress() throws IOException {
+    final Path sourceDir = Paths.get("./src/test/resources/data/");
+    final Path plainDir = createTempDir("mozsearch-plain");
+    final Path compressedDir = createTempDir("mozsearch-compressed");
+
+    new MozSearchJavaIndexer(sourceDir, plainDir).outputIndexes();
+    MozSearchJavaIndexer indexer = new MozSearchJavaIndexer(sourceDir, compressedDir);
+    indexer.setCompress(true);
+    indexer.outputIndexes();
+    indexer = new MozSearchJavaIndexer(sourceDir, compressedDir);
+    indexer.setBinary(true);
+    indexer.outputIndexes();
+
+    assertFalse(Files.exists(compressedDir.resolve("HelloWorld.java")));
+    for (String name : Arrays.asList("HelloWorld.java.gz", "HelloWorld.java.bin")) {
+      final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+      MozSearchAnalysisReader.decode(
+          compressedDir.resolve(name), new PrintStream(decoded, true, "UTF-8"));
+      assertTrue(
+          Arrays.equals(
+              Files.readAllBytes(plainDir.resolve("HelloWorld.java")), decoded.toByteArray()));
+    }
+  }
+
+  public void testSymbolInterner() {
+    final MozSearchSymbolInterner interner = new MozSearchSymbolInterner(1);
+    final MozSearchSymbolInterner.Symbol string = interner.get("java.lang.", "String");
+    assertEquals("java#lang#String", string.getSymbol());
+    assertSame(string, interner.get("java.lang.", "String"));
+    // The table is full, so the new symbol replaces the old one.
+    final MozSearchSymbolInterner.Symbol object = interner.get("java.lang.", "Object");
+    assertSame(object, interner.get("java.lang.", "Object"));
+    assertNotSame(string, interner.get("java.lang.", "String"));
+  }
+
+  public void testSymbolCache() throws IOException {
+    final Path cacheDir = createTempDir("mozsearch-cache");
+    MozSearchSymbolCache cache = MozSearchSymbolCache.open(cacheDir, "lib", "1", 2);
+    cache.put("a.A", MozSearchSymbolCache.ABSENT);
+    cache.put("a.B", "a.B");
+    // The cache is full.
+    cache.put("a.C", "a.C");
+    assertNull(cache.get("a.C"));
+    cache.save();
+
+    cache = MozSearchSymbolCache.open(cacheDir, "lib", "1", 2);
+    assertEquals("a.B", cache.get("a.B"));
+    cache.save();
+    // a.A wasn't used, so it's dropped.
+    cache = MozSearchSymbolCache.open(cacheDir, "lib", "1", 2);
+    assertNull(cache.get("a.A"));
+    assertEquals("a.B", cache.get("a.B"));
+    // Another version of the library doesn't use the old entries.
+    cache = MozSearchSymbolCache.open(cacheDir, "lib", "2", 2);
+    assertNull(cache.get("a.B"));
+  }
+
+  public void testSymbolIndex() throws IOException {
+    final Path outputDir = createTempDir("mozsearch-output");
+    final Path indexPath = outputDir.resolve("symbols");
+
+    MozSearchJavaIndexer indexer =
+        new MozSearchJavaIndexer(Paths.get("./src/test/resources/data/"), outputDir);
+    indexer.setSymbolIndexPath(indexPath);
+    indexer.outputIndexes();
+
+    try (MozSearchSymbolIndex index = new MozSearchSymbolIndex(indexPath)) {
+      final List<MozSearchSymbolIndex.Occurrence> occurrences = index.lookup("main");
+      assertEquals(5, occurrences.size());
+      assertEquals("EnumClass.java", occurrences.get(0).getPath());
+      assertTrue(occurrences.get(0).isDefinition());
+      assertTrue(index.lookup("no#such#Symbol").isEmpty());
+    }
+  }
+
+  public void testPackageIndex() throws IOException {
+    final String source =
+        "package a.b;\n"
+            + "import java.util.List;\n"
+            + "class C { class Nested {} String s = \"class X {\"; }\n"
+            + "interface D {}\n"
+            + "record E(int x) {}\n";
+    final MozSearchPackageScanner.Declarations declarations =
+        MozSearchPackageScanner.scanDeclarations(new StringReader(source));
+    assertEquals("a.b", declarations.getPackageName());
+    assertEquals(Arrays.asList("C", "D", "E"), declarations.getTypeNames());
+    final MozSearchPackageScanner.Declarations header =
+        MozSearchPackageScanner.scanHeader(new StringReader(source));
+    assertEquals("a.b", header.getPackageName());
+    assertEquals(Arrays.asList("C"), header.getTypeNames());
+
+    final Path root = Paths.get("/src").toAbsolutePath();
+    final Path dir = root.resolve("a").resolve("b");
+    final Path file = dir.resolve("C.java");
+    // A file of the default package with a second top-level type.
+    final Path defaultDir = Paths.get("/other").toAbsolutePath();
+    final Path defaultFile = defaultDir.resolve("Main.java");
+    final Map<Path, String> sources = new LinkedHashMap<Path, String>();
+    sources.put(file, source);
+    sources.put(defaultFile, "class Main {}\nclass Helper {}\n");
+    final Map<Path, List<String>> files = new LinkedHashMap<Path, List<String>>();
+    for (Map.Entry<Path, String> entry : sources.entrySet()) {
+      files.put(
+          entry.getKey(),
+          MozSearchPackageScanner.scanHeader(new StringReader(entry.getValue())).getTypeNames());
+    }
+    final ArrayList<Path> scanned = new ArrayList<Path>();
+    final MozSearchPackageIndex index =
+        new MozSearchPackageIndex(
+            Arrays.asList(root, dir, defaultDir),
+            files,
+            path -> {
+              scanned.add(path);
+              return sources.get(path);
+            });
+    assertTrue(scanned.isEmpty());
+    // The other top-level types are found by a scan of their package, when
+    // it's first looked up.
+    assertEquals(Arrays.asList(root), index.getRoots("a.b.C.Nested", null));
+    assertEquals(Arrays.asList(file), scanned);
+    assertEquals(Arrays.asList(file), index.getFiles(root, "a.b.D", null));
+    assertEquals(Arrays.asList(file), index.getFiles(root, "a.b.E", null));
+    assertEquals(Arrays.asList(file), scanned);
+    assertTrue(index.getRoots("a.b.F", null).isEmpty());
+    // A simple name is looked for in the default package of the directory
+    // of the file being resolved only.
+    assertEquals(Arrays.asList(dir), index.getRoots("C", null));
+    assertTrue(index.getRoots("Helper", dir).isEmpty());
+    assertEquals(Arrays.asList(defaultDir), index.getRoots("Helper", defaultDir));
+    assertEquals(Arrays.asList(defaultFile), index.getFiles(defaultDir, "Helper", defaultDir));
+    assertEquals(Arrays.asList(file, file, defaultFile), scanned);
+  }
+
+  // Slow, as it indexes 1000 files in a child JVM, so it only runs as an
+  // integration test.
+  public void testSmallHeap() throws Exception {
+    if (!Boolean.getBoolean(INTEGRATION_PROPERTY)) {
+      return;
+    }
+    final Path sourceDir = createTempDir("mozsearch-source");
+    final Path outputDir = createTempDir("mozsearch-output");
+    final Path packageDir = Files.createDirectories(sourceDir.resolve("a"));
+    final Path log = createTempFile("mozsearch", ".log");
+    final int count = 1000;
+    for (int i = 0; i < count; i++) {
+      final StringBuilder source = new StringBuilder("package a;\n\npublic class C" + i + " {\n");
+      source.append("  C" + ((i + 1) % count) + " mNext;\n");
+      for (int j = 0; j < 20; j++) {
+        source.append("  int f" + j + "(java.util.List<String> list) {\n");
+        source.append("    return mNext.f" + j + "(list) + list.get(" + j + ").length();\n");
+        source.append("  }\n");
+      }
+      source.append("}\n");
+      Files.write(packageDir.resolve("C" + i + ".java"), source.toString().getBytes());
+    }
+
+    // Workers drop what they resolved in each file, so a heap which fits a
+    // few files is enough for any number of files.
+    final Process process =
+        new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx64m",
+                "-XX:+ExitOnOutOfMemoryError",
+                "-cp",
+                System.getProperty("java.class.path"),
+                JavaAnalyze.class.getName(),
+                "--jobs",
+                "2",
+                sourceDir.toString(),
+                outputDir.toString())
+            .redirectErrorStream(true)
+            .redirectOutput(log.toFile())
+            .start();
+    assertEquals(0, process.waitFor());
+    for (int i = 0; i < count; i++) {
+      assertTrue(Files.exists(outputDir.resolve("a").resolve("C" + i + ".java")));
+    }
+  }
+
+  private Path createTempDir(final String prefix) throws IOException {
+    final Path dir = Files.createTempDirectory(prefix);
+    mTempPaths.add(dir);
+    return dir;
+  }
+
+  private Path createTempFile(final String prefix, final String suffix) throws IOException {
+    final Path file = Files.createTempFile(prefix, suffix);
+    mTempPaths.add(file);
+    return file;
+  }
+
+  // Compare each output with its expected .out file, byte for byte.
+  private static void assertSameResults(
+      final Path resultDir, final Path outputDir, final String suffix) throws IOException {
+    final ArrayList<Path> results = new ArrayList<Path>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(resultDir, "*.out")) {
+      files.forEach(results::add);
+    }
+    try (Stream<Path> outputs = Files.list(outputDir)) {
+      assertEquals(results.size(), outputs.count());
+    }
+    for (Path result : results) {
+      final String name = result.getFileName().toString();
+      final Path output =
+          outputDir.resolve(name.substring(0, name.length() - ".out".length()) + suffix);
+      final byte[] bytes;
+      if (suffix.isEmpty()) {
+        bytes = Files.readAllBytes(output);
+      } else {
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        MozSearchAnalysisReader.decode(output, new PrintStream(decoded, true, "UTF-8"));
+        bytes = decoded.toByteArray();
+      }
+      assertTrue(output.toString(), Arrays.equals(Files.readAllBytes(result), bytes));
+    }
+  }
+
+  private static void assertSameFiles(final Path expectedDir, final Path dir) throws IOException {
+    final ArrayList<Path> expected = new ArrayList<Path>();
+    try (Stream<Path> walk = Files.walk(expectedDir)) {
+      walk.filter(Files::isRegularFile).forEach(expected::add);
+    }
+    try (Stream<Path> walk = Files.walk(dir)) {
+      assertEquals(expected.size(), walk.filter(Files::isRegularFile).count());
+    }
+    for (Path file : expected) {
+      final Path other = dir.resolve(expectedDir.relativize(file));
+      assertTrue(
+          file.toString(), Arrays.equals(Files.readAllBytes(file), Files.readAllBytes(other)));
+    }
+  }
+
+  private static void deleteTree(final Path dir) throws IOException {
+    final ArrayList<Path> paths = new ArrayList<Path>();
+    try (Stream<Path> walk = Files.walk(dir)) {
+      walk.forEach(paths::add);
+    }
+    for (int i = paths.size() - 1; i >= 0; i--) {
+      Files.delete(paths.get(i));
+    }
   }
 }